@@ -0,0 +1,71 @@
+package com.fmaylinch.sqlmongo.benchmark;
+
+import com.fmaylinch.sqlmongo.output.FieldAccessor;
+import com.fmaylinch.sqlmongo.output.ResultPrinter;
+import com.mongodb.DBObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** Extracts and formats all fields of one document of the given width and nesting depth */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractionBenchmark {
+
+	@Param({"5", "50"})
+	public int width;
+
+	@Param({"0", "3"})
+	public int depth;
+
+	private final ResultPrinter printer = new ResultPrinter();
+	private DBObject document;
+	private FieldAccessor[] accessors;
+	private Object[] values;
+
+	@Setup
+	public void setup() {
+		document = Fixtures.document(width, depth, 0);
+		accessors = FieldAccessor.compile(Fixtures.fields(width, depth).values());
+		values = new Object[width];
+		for (int i = 0; i < width; i++) {
+			values[i] = accessors[i].get(document);
+		}
+	}
+
+	@Benchmark
+	public void extractValue(Blackhole blackhole) {
+		for (FieldAccessor accessor : accessors) {
+			blackhole.consume(printer.extractValue(document, accessor));
+		}
+	}
+
+	@Benchmark
+	public void accessorOnly(Blackhole blackhole) {
+		for (FieldAccessor accessor : accessors) {
+			blackhole.consume(accessor.get(document));
+		}
+	}
+
+	@Benchmark
+	public void valueToString(Blackhole blackhole) {
+		for (Object value : values) {
+			blackhole.consume(printer.valueToString(value));
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.fmaylinch.sqlmongo.benchmark;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Synthetic queries, documents and sinks shared by the benchmarks */
+class Fixtures {
+
+	static final String SHORT_QUERY = "select userEmail as email, purchasedOn, price from coupons" +
+			" where purchasedOn >= Date('2016-04-01') order by price, purchasedOn desc limit 10";
+
+	/** Query with many fields, conditions and orders */
+	static String longQuery(int size) {
+
+		StringBuilder sql = new StringBuilder("select ");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) sql.append(", ");
+			sql.append("house.address.field").append(i).append(" as f").append(i);
+		}
+
+		sql.append("\nfrom coupons where ");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) sql.append(" and ");
+			sql.append("field").append(i).append(i % 2 == 0 ? " >= " : " = ").append(i % 3 == 0 ? "'text'" : "123.45");
+		}
+
+		sql.append("\norder by ");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) sql.append(", ");
+			sql.append("field").append(i).append(i % 2 == 0 ? " asc" : " desc");
+		}
+
+		return sql.append(" limit 100").toString();
+	}
+
+	static String query(String name) {
+		return name.equals("short") ? SHORT_QUERY : longQuery(200);
+	}
+
+	/** Path of field i, nested in depth levels, e.g. l0.l1.field3 */
+	static String path(int i, int depth) {
+		StringBuilder path = new StringBuilder();
+		for (int level = 0; level < depth; level++) {
+			path.append('l').append(level).append('.');
+		}
+		return path.append("field").append(i).toString();
+	}
+
+	/** Document with width fields of different types, each one nested in depth levels */
+	static DBObject document(int width, int depth, int seed) {
+
+		BasicDBObject root = new BasicDBObject();
+
+		for (int i = 0; i < width; i++) {
+			BasicDBObject parent = root;
+			for (int level = 0; level < depth; level++) {
+				String name = "l" + level;
+				if (!parent.containsField(name)) parent.put(name, new BasicDBObject());
+				parent = (BasicDBObject) parent.get(name);
+			}
+			parent.put("field" + i, value(i + seed));
+		}
+
+		return root;
+	}
+
+	static List<DBObject> documents(int count, int width, int depth) {
+		List<DBObject> documents = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			documents.add(document(width, depth, i));
+		}
+		return documents;
+	}
+
+	/** Fields (alias to path) of the documents created by {@link #document} */
+	static Map<String, String> fields(int width, int depth) {
+		Map<String, String> fields = new LinkedHashMap<>();
+		for (int i = 0; i < width; i++) {
+			fields.put("f" + i, path(i, depth));
+		}
+		return fields;
+	}
+
+	private static Object value(int i) {
+		switch (i % 6) {
+			case 0: return "user" + i + "@example.com";
+			case 1: return i * 1.5;
+			case 2: return new Date(1459468800000L + i * 60000L);
+			case 3: return i;
+			case 4: return new ObjectId(new Date(1459468800000L + i * 1000L), i);
+			default: return i % 12 == 5 ? null : "say \"hi\", " + i;
+		}
+	}
+
+
+	// Sinks
+
+	static PrintStream nullPrintStream() {
+		return new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+
+			@Override
+			public void write(byte[] b, int off, int len) { }
+		});
+	}
+
+	static WritableByteChannel nullChannel() {
+		return new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) {
+				int remaining = src.remaining();
+				src.position(src.limit());
+				return remaining;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() { }
+		};
+	}
+}
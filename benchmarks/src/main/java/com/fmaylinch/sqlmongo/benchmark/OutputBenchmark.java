@@ -0,0 +1,81 @@
+package com.fmaylinch.sqlmongo.benchmark;
+
+import com.fmaylinch.sqlmongo.output.ResultPrinter;
+import com.fmaylinch.sqlmongo.util.ListCursor;
+import com.mongodb.DBObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Prints {@link #ROWS} documents in each output mode to a sink that discards everything */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+
+	private static final int ROWS = 1000;
+
+	@Param({"horizontal", "vertical", "csv"})
+	public String mode;
+
+	@Param({"10"})
+	public int width;
+
+	/** Only used for horizontal and vertical */
+	@Param({"40", "auto"})
+	public String padding;
+
+	private final ResultPrinter printer = new ResultPrinter();
+	private final PrintStream out = Fixtures.nullPrintStream();
+	private List<DBObject> documents;
+	private Map<String, String> fields;
+
+	@Setup
+	public void setup() {
+		documents = Fixtures.documents(ROWS, width, 1);
+		fields = Fixtures.fields(width, 1);
+
+		if (padding.equals("auto")) {
+			printer.setAutoPadding(100);
+		} else {
+			printer.setPadding(Integer.parseInt(padding));
+		}
+	}
+
+	@Benchmark
+	public void print() throws IOException {
+
+		ListCursor cursor = new ListCursor(documents);
+
+		switch (mode) {
+			case "horizontal":
+				printer.printHorizontal(cursor, fields, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+				break;
+			case "vertical":
+				printer.printVertical(cursor, fields, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+				break;
+			default:
+				printer.printCsv(cursor, fields, Fixtures.nullChannel());
+				break;
+		}
+	}
+}
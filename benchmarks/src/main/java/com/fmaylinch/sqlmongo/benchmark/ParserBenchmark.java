@@ -0,0 +1,72 @@
+package com.fmaylinch.sqlmongo.benchmark;
+
+import com.fmaylinch.sqlmongo.parser.QueryOptions;
+import com.fmaylinch.sqlmongo.parser.SqlParser;
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses a query without running it.
+ *
+ * The DB comes from a client that is never connected, so this only calls {@link SqlParser#parseQuery()}:
+ * with the default options (no schema catalog) it doesn't touch the server, while run() may load
+ * indexes, paging keys or run commands.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({"short", "long"})
+	public String query;
+
+	private String sql;
+	private MongoClient client;
+	private DB db;
+	private QueryOptions options;
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		// The client keeps trying to connect in the background; we don't want to see that
+		Logger.getLogger("com.mongodb").setLevel(Level.OFF);
+
+		sql = Fixtures.query(query);
+		client = new MongoClient(new ServerAddress("localhost", 1));
+		db = client.getDB("benchmark");
+
+		options = new QueryOptions();
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+	}
+
+	@Benchmark
+	public SqlParser.ParseResult parseQuery() {
+		SqlParser parser = new SqlParser(sql, db);
+		parser.setOptions(options);
+		return parser.parseQuery();
+	}
+}
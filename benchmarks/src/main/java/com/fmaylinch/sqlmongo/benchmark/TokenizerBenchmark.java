@@ -0,0 +1,72 @@
+package com.fmaylinch.sqlmongo.benchmark;
+
+import com.fmaylinch.sqlmongo.tokenizer.SpanTokenizer;
+import com.fmaylinch.sqlmongo.tokenizer.Token;
+import com.fmaylinch.sqlmongo.tokenizer.Tokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Tokenizes a whole query */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+
+	private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+			"select", "from", "where", "as", "and", "limit", "order", "by", "asc", "desc"));
+
+	private static final SpanTokenizer.Words SPAN_KEYWORDS = SpanTokenizer.Words.of(KEYWORDS.toArray(new String[0]));
+
+	@Param({"short", "long"})
+	public String query;
+
+	private String sql;
+
+	@Setup
+	public void setup() {
+		sql = Fixtures.query(query);
+	}
+
+	@Benchmark
+	public int tokenize() {
+
+		Tokenizer tokenizer = new Tokenizer(sql);
+		tokenizer.setKeywords(KEYWORDS);
+
+		int tokens = 0;
+		while (!tokenizer.skipNextToken().isEndToken()) {
+			tokens++;
+		}
+		return tokens;
+	}
+
+	@Benchmark
+	public int spanTokenize() {
+
+		SpanTokenizer tokenizer = new SpanTokenizer(sql);
+		tokenizer.setKeywords(SPAN_KEYWORDS);
+
+		int tokens = 0;
+		while (tokenizer.getType(tokenizer.skipNextToken()) != Token.Type.END) {
+			tokens++;
+		}
+		return tokens;
+	}
+}
@@ -1,36 +1,46 @@
 package com.fmaylinch.sqlmongo;
 
-import com.codepoetics.protonpack.StreamUtils;
+import com.fmaylinch.sqlmongo.batch.ScriptRunner;
+import com.fmaylinch.sqlmongo.cache.ResultCache;
+import com.fmaylinch.sqlmongo.export.ResumableCsvExport;
+import com.fmaylinch.sqlmongo.metrics.ProgressReporter;
+import com.fmaylinch.sqlmongo.metrics.QueryMetrics;
+import com.fmaylinch.sqlmongo.output.ExplainPrinter;
+import com.fmaylinch.sqlmongo.output.FieldAccessor;
+import com.fmaylinch.sqlmongo.output.ResultPrinter;
+import com.fmaylinch.sqlmongo.parallel.ParallelCsvExport;
+import com.fmaylinch.sqlmongo.parallel.RangePartitioner;
+import com.fmaylinch.sqlmongo.parser.QueryOptions;
 import com.fmaylinch.sqlmongo.parser.SqlParser;
-import com.fmaylinch.sqlmongo.util.Fun;
+import com.fmaylinch.sqlmongo.schema.SchemaCatalog;
+import com.fmaylinch.sqlmongo.server.QueryServer;
 import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.Cursor;
 import com.mongodb.DB;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
-import com.opencsv.CSVWriter;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Collection;
-import java.util.Date;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 public class SqlMongo {
 
-	private static DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 	private static Pattern optionPattern = Pattern.compile("([a-zA-Z0-9]+)=(.+)");
-	private static int padding;
-	private static String nullValue;
-	private static char csvSeparator;
+	private static ResultPrinter printer = new ResultPrinter();
 
 	public static void main(String[] args) throws IOException {
 
@@ -38,14 +48,103 @@ public class SqlMongo {
 
 		String uri = getRequiredPropertyWithExample(config, "uri",
 				"mongodb://localhost:27017/mydb");
+
+		if (Boolean.parseBoolean(config.getProperty("jmx"))) {
+			QueryMetrics.INSTANCE.registerMBean();
+		}
+
+		int progressInterval = Integer.parseInt(config.getProperty("progressInterval"));
+		ProgressReporter progress = progressInterval > 0
+				? new ProgressReporter(QueryMetrics.INSTANCE, progressInterval) : null;
+
+		// times of each document are only recorded if they're going to be seen
+		QueryMetrics.INSTANCE.setTiming(Boolean.parseBoolean(config.getProperty("metricsSummary"))
+				|| progressInterval > 0 || Boolean.parseBoolean(config.getProperty("jmx")));
+
+		// built once, as it may open the result cache and the schema catalog
+		QueryOptions options = queryOptions(config);
+
+		if (config.getProperty("mode").equals("server")) {
+			startServer(uri, config, options);
+			return;
+		}
+
+		int failures = 0;
+
+		try {
+			if (config.getProperty("mode").equals("batch")) {
+				failures = runScript(uri, config, options);
+			} else {
+				runQuery(uri, config, options);
+			}
+		} finally {
+			if (progress != null) progress.close();
+			if (options.resultCache != null) options.resultCache.close();
+
+			if (Boolean.parseBoolean(config.getProperty("metricsSummary"))) {
+				System.err.println(QueryMetrics.INSTANCE.summary());
+			}
+		}
+
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void runQuery(String uri, Properties config, QueryOptions options) throws IOException
+	{
 		String querySql = getRequiredPropertyWithExample(config, "query",
 				"select userEmail from coupons where couponState = 4");
 
 		DB db = MongoUtil.connectToDb(uri);
 
-		SqlParser.ParseResult result = new SqlParser(querySql, db).parse();
+		try {
+			SqlParser parser = new SqlParser(querySql, db);
+			parser.setOptions(options);
+			SqlParser.ParseResult result = parser.parse();
+
+			printOutput(result, config, options);
+
+			String nextPageToken = result.nextPageToken();
+			if (nextPageToken != null && result.limit > 0) {
+				System.err.println("Next page: limit " + result.limit + " offset '" + nextPageToken + "'");
+			}
+
+		} finally {
+			db.getMongo().close();
+		}
+	}
+
+	private static void startServer(String uri, Properties config, QueryOptions options) throws IOException
+	{
+		int port = Integer.parseInt(config.getProperty("serverPort"));
+
+		QueryServer server = new QueryServer(printer, uri, Integer.parseInt(config.getProperty("poolSize")));
+		server.setOptions(options);
+		server.start(port, Integer.parseInt(config.getProperty("serverThreads")));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.stop();
+			if (options.resultCache != null) options.resultCache.close();
+		}));
 
-		printOutput(result, config);
+		System.err.println("Listening for queries on http://localhost:" + port + "/query");
+	}
+
+	/** Returns the number of statements that failed */
+	private static int runScript(String uri, Properties config, QueryOptions options) throws IOException
+	{
+		String script = getRequiredPropertyWithExample(config, "script", "report.sql");
+
+		DB db = MongoUtil.connectToDb(uri);
+
+		try {
+			ScriptRunner runner = new ScriptRunner(db, printer);
+			runner.setOptions(options);
+			return runner.run(script, config.getProperty("output"),
+					Integer.parseInt(config.getProperty("batchThreads")));
+		} finally {
+			db.getMongo().close();
+		}
 	}
 
 	private static Properties setupConfig(String[] args)
@@ -55,8 +154,45 @@ public class SqlMongo {
 		config.setProperty("dateFormat", "yyyy-MM-dd HH:mm:ss");
 		config.setProperty("nullValue", "");
 		config.setProperty("output", "horizontal"); // horizontal, vertical or directly a csv file name
-		config.setProperty("padding", "40"); // only used for horizontal and vertical output
+		config.setProperty("padding", "40"); // only used for horizontal and vertical output (a number or auto)
+		config.setProperty("autoPaddingRows", "100"); // only used if padding is auto
 		config.setProperty("csvSeparator", ","); // only used for csv output
+		config.setProperty("csvBufferSize", "1048576"); // only used for csv output
+		config.setProperty("parallelism", "1"); // only used for csv output
+		config.setProperty("partitionField", "_id"); // only used if parallelism > 1
+		config.setProperty("partitionSplit", "interpolate"); // interpolate or sample
+		config.setProperty("parallelOutput", "ordered"); // ordered, unordered or parts
+		config.setProperty("csvResume", "none"); // none, resume or incremental (only used for csv output)
+		config.setProperty("resumeKey", "_id"); // unique indexed field used to resume csv exports
+		config.setProperty("checkpointRows", "10000"); // rows between checkpoints of resumable csv exports
+		config.setProperty("lazyDecoding", "false"); // decode only the printed fields (find queries)
+		config.setProperty("autoIndexHint", "true"); // hint the index that covers a find query
+		config.setProperty("pageTokens", "false"); // print the token of the next page of queries with limit
+		config.setProperty("clientJoin", "false"); // join in the client even in the same database
+		config.setProperty("joinBatchSize", "1000"); // documents joined at a time in client joins
+		config.setProperty("scalarFields", "false"); // fields are not arrays, so more conditions are contradictions
+		config.setProperty("clientSort", "auto"); // auto, always or never sort find queries in the client
+		config.setProperty("sortRunSize", "100000"); // documents sorted in memory at a time in client sorts
+		config.setProperty("sortTempDir", ""); // temporary files of client sorts (empty for the system one)
+		config.setProperty("cache", "false"); // reuse results of the same queries (see the cache options below)
+		config.setProperty("cacheDir", ".sqlmongo-cache"); // where results are kept between runs
+		config.setProperty("cacheTtl", "300"); // seconds a result is valid
+		config.setProperty("cacheMemory", "67108864"); // bytes of results kept in memory
+		config.setProperty("cacheDisk", "1073741824"); // bytes of results kept in cacheDir
+		config.setProperty("cacheMaxEntry", "16777216"); // bigger results are not cached
+		config.setProperty("cacheFingerprint", "false"); // also invalidate when count or max _id change
+		config.setProperty("inferSchema", "false"); // select * selects the columns found in sampled documents
+		config.setProperty("catalogDir", ".sqlmongo-catalog"); // where inferred schemas are kept
+		config.setProperty("catalogTtl", "86400"); // seconds an inferred schema is valid
+		config.setProperty("schemaSample", "1000"); // documents sampled to infer a schema
+		config.setProperty("metricsSummary", "false"); // print metrics to stderr at the end
+		config.setProperty("progressInterval", "0"); // seconds between progress lines on stderr (0 for none)
+		config.setProperty("jmx", "false"); // expose metrics as an MBean
+		config.setProperty("mode", "query"); // query (run the query and exit), batch or server
+		config.setProperty("batchThreads", "4"); // only used in batch mode
+		config.setProperty("serverPort", "8017"); // only used in server mode
+		config.setProperty("serverThreads", "4"); // only used in server mode
+		config.setProperty("poolSize", "10"); // only used in server mode: connections per host
 
 		try {
 			config.load(new FileReader("config.properties"));
@@ -66,18 +202,35 @@ public class SqlMongo {
 
 		overrideConfigFromArgs(args, config);
 
-		dateFormat = new SimpleDateFormat(config.getProperty("dateFormat"));
-		nullValue = config.getProperty("nullValue");
-		padding = Integer.parseInt(config.getProperty("padding"));
-		csvSeparator = config.getProperty("csvSeparator").charAt(0);
+		printer.setDateFormat(config.getProperty("dateFormat"));
+		printer.setNullValue(config.getProperty("nullValue"));
+		if (config.getProperty("padding").equals("auto")) {
+			printer.setAutoPadding(Integer.parseInt(config.getProperty("autoPaddingRows")));
+		} else {
+			printer.setPadding(Integer.parseInt(config.getProperty("padding")));
+		}
+		printer.setCsvSeparator(config.getProperty("csvSeparator").charAt(0));
+		printer.setCsvBufferSize(Integer.parseInt(config.getProperty("csvBufferSize")));
 
 		return config;
 	}
 
-	private static void printOutput(SqlParser.ParseResult result, Properties config) throws IOException
+	private static void printOutput(SqlParser.ParseResult result, Properties config, QueryOptions options) throws IOException
 	{
+		if (result.explain) {
+			System.out.print(ExplainPrinter.describe(result));
+			return;
+		}
+
 		String output = config.getProperty("output");
 
+		if (result.schema != null) {
+			long age = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - result.schema.createdAt);
+			System.err.println("Warning: select * selects the columns inferred " + age + " minutes ago from "
+					+ result.schema.sampled + " documents (fields missing from them are not shown): "
+					+ String.join(", ", result.fields.keySet()));
+		}
+
 		if (result.fields.isEmpty() && !output.equals("vertical")) {
 			System.err.println("If you retrieve all fields you must use vertical output. Forcing vertical output.");
 			output = "vertical";
@@ -85,92 +238,132 @@ public class SqlMongo {
 
 		switch (output) {
 			case "horizontal":
-				printCursorHorizontal(result.cursor, result.fields);
+				printer.printHorizontal(result.cursor, result.fields, new OutputStreamWriter(System.out));
 				break;
 			case "vertical":
-				printCursorVertical(result.cursor, result.fields);
+				printer.printVertical(result.cursor, result.fields, new OutputStreamWriter(System.out));
 				break;
 			default:
-				printCursorToCsv(result.cursor, output, result.fields);
+				int parallelism = Integer.parseInt(config.getProperty("parallelism"));
+				if (parallelism > 1 && (result.limit > 0 || result.offset > 0 || result.pageToken != null || result.countOnly
+						|| result.distinct || result.alwaysFalse || result.pipeline != null || result.join != null)) {
+					System.err.println("Parallel output is not supported with limit, offset, count(*), distinct, group by, join or tablesample. Using a single cursor.");
+					parallelism = 1;
+				}
+				if (parallelism > 1 && result.orders != null
+						&& !result.orders.equals(MongoUtil.obj(config.getProperty("partitionField"), 1))) {
+					// Each range is sorted on its own, so only the order of the partition field is kept
+					System.err.println("Parallel output only supports order by the partition field (ascending). Using a single cursor.");
+					parallelism = 1;
+				}
+				String resume = config.getProperty("csvResume");
+				if (!resume.equals("none") && (result.limit > 0 || result.offset > 0 || result.pageToken != null || result.countOnly
+						|| result.pipeline != null || result.distinct || result.join != null)) {
+					System.err.println("Resumable output is not supported with limit, offset, count(*), distinct, group by, join or tablesample. Exporting from the start.");
+					resume = "none";
+				}
+				if (!resume.equals("none")) {
+					printResumableToCsv(result, output, ResumableCsvExport.Mode.valueOf(resume.toUpperCase()), config, options);
+				} else if (parallelism > 1) {
+					printParallelToCsv(result, output, parallelism, config, options);
+				} else {
+					printCursorToCsv(result.cursor, output, result.fields);
+				}
 				break;
 		}
 	}
 
-	private static void printCursorHorizontal(DBCursor cursor, Map<String, String> fields) {
-
-		System.out.println(StringUtils.join(Fun.map(fields.keySet(), f -> StringUtils.rightPad(f, padding)), ""));
+	private static void printCursorToCsv(Cursor cursor, String csvFile, Map<String, String> fields) throws IOException
+	{
+		System.out.println("Writing output to CSV file: " + csvFile + " ...");
 
-		MongoUtil.process(cursor, object -> {
+		printer.printCsv(cursor, fields, FileChannel.open(Paths.get(csvFile), CREATE, WRITE, TRUNCATE_EXISTING));
 
-			List<String> values = extractValues(object, fields.values());
-			System.out.println(StringUtils.join(Fun.map(values, f -> StringUtils.rightPad(f, padding)), ""));
-		});
+		System.out.println("Done");
 	}
 
-	private static void printCursorVertical(DBCursor cursor, Map<String, String> fields) {
+	private static void printParallelToCsv(SqlParser.ParseResult result, String csvFile, int parallelism,
+										   Properties config, QueryOptions options) throws IOException
+	{
+		ParallelCsvExport.Output parallelOutput =
+				ParallelCsvExport.Output.valueOf(config.getProperty("parallelOutput").toUpperCase());
+		RangePartitioner.Split split =
+				RangePartitioner.Split.valueOf(config.getProperty("partitionSplit").toUpperCase());
 
-		MongoUtil.process(cursor, object -> {
+		result.cursor.close(); // each range gets its own cursor
 
-			Collection<String> fieldNames = !fields.isEmpty() ? fields.keySet() : object.keySet();
+		List<DBObject> queries = new RangePartitioner(result.collection, result.query,
+				config.getProperty("partitionField")).split(parallelism, split);
 
-			List<String> values = extractValues(object, fieldNames);
+		System.out.println("Writing output to CSV file: " + csvFile + " in " + queries.size() + " parallel ranges ...");
 
-			List<String> fieldsAndValues = StreamUtils
-					.zip(fieldNames.stream(), values.stream(), (f, v) -> StringUtils.rightPad(f + ":", padding) + v)
-					.collect(Collectors.toList());
+		FieldAccessor[] accessors = FieldAccessor.compile(result.fields.values());
 
-			System.out.println(StringUtils.join(fieldsAndValues, "\n"));
-			System.out.println();
-		});
+		ParallelCsvExport export = new ParallelCsvExport(result.collection, result.projection, result.orders,
+				result.fields.keySet(), (writer, object) -> printer.writeCsvRow(writer, accessors, object));
+		export.setSeparator(printer.getCsvSeparator());
+		export.setBufferSize(printer.getCsvBufferSize());
+		export.setLazyDecoding(options.lazyDecoding);
+		export.setHints(result.hints);
+
+		long rows = export.export(queries, csvFile, parallelOutput);
+
+		System.out.println("Done (" + rows + " rows)");
 	}
 
-	private static void printCursorToCsv(DBCursor cursor, String csvFile, Map<String, String> fields) throws IOException
+	private static void printResumableToCsv(SqlParser.ParseResult result, String csvFile,
+											ResumableCsvExport.Mode mode, Properties config, QueryOptions options) throws IOException
 	{
-		System.out.println("Writing output to CSV file: " + csvFile + " ...");
-		CSVWriter writer = new CSVWriter(new FileWriter(csvFile), csvSeparator);
-
-		writer.writeNext(toStringArray(fields.keySet())); // header
+		result.cursor.close(); // the export sorts by the key and restarts after the checkpoint
 
-		MongoUtil.process(cursor, object -> {
+		String key = config.getProperty("resumeKey");
+		if (result.orders != null && !result.orders.keySet().equals(Collections.singleton(key))) {
+			System.err.println("Resumable output is sorted by " + key + ". Ignoring order by.");
+		}
 
-			List<String> values = extractValues(object, fields.values());
-			writer.writeNext(toStringArray(values));
-		});
+		System.out.println("Writing output to CSV file: " + csvFile + " (checkpoint in "
+				+ ResumableCsvExport.checkpointFile(csvFile) + ") ...");
 
-		writer.close();
-		System.out.println("Done");
+		FieldAccessor[] accessors = FieldAccessor.compile(result.fields.values());
 
-	}
+		ResumableCsvExport export = new ResumableCsvExport(result.collection, result.query, result.projection,
+				result.fields.keySet(), (writer, object) -> printer.writeCsvRow(writer, accessors, object), key);
+		export.setSeparator(printer.getCsvSeparator());
+		export.setBufferSize(printer.getCsvBufferSize());
+		export.setLazyDecoding(options.lazyDecoding);
+		export.setHints(result.hints);
+		export.setCheckpointRows(Integer.parseInt(config.getProperty("checkpointRows")));
 
-	private static List<String> extractValues(DBObject object, Collection<String> fieldNames) {
+		long rows = export.export(csvFile, mode);
 
-		return fieldNames.stream().map(f -> extractValue(object, f)).collect(Collectors.toList());
+		System.out.println("Done (" + rows + " rows)");
 	}
 
-	private static String extractValue(DBObject object, String fieldName)
-	{
-		if (fieldName.contains(".")) {
-			String[] parts = fieldName.split("\\.");
-			for (int i = 0; i < parts.length - 1; i++) {
-				Object obj = object.get(parts[i]);
-				if (obj == null) return "";
-				if (!(obj instanceof DBObject)) throw new IllegalArgumentException("Field path is not right: " + fieldName);
-				object = (DBObject) obj;
-			}
-			fieldName = parts[parts.length-1];
+	private static QueryOptions queryOptions(Properties config) {
+		QueryOptions options = new QueryOptions();
+		options.lazyDecoding = Boolean.parseBoolean(config.getProperty("lazyDecoding"));
+		options.autoIndexHint = Boolean.parseBoolean(config.getProperty("autoIndexHint"));
+		options.scalarFields = Boolean.parseBoolean(config.getProperty("scalarFields"));
+		options.pageTokens = Boolean.parseBoolean(config.getProperty("pageTokens"));
+		options.clientJoin = Boolean.parseBoolean(config.getProperty("clientJoin"));
+		options.joinBatchSize = Integer.parseInt(config.getProperty("joinBatchSize"));
+		options.clientSort = QueryOptions.ClientSort.valueOf(config.getProperty("clientSort").toUpperCase());
+		options.sortRunSize = Integer.parseInt(config.getProperty("sortRunSize"));
+		options.sortTempDir = config.getProperty("sortTempDir");
+		if (Boolean.parseBoolean(config.getProperty("inferSchema")) && !config.getProperty("output").equals("vertical")) {
+			options.schemaCatalog = new SchemaCatalog(Paths.get(config.getProperty("catalogDir")),
+					TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("catalogTtl"))),
+					Integer.parseInt(config.getProperty("schemaSample")));
 		}
-
-		return valueToString(object.get(fieldName));
-	}
-
-	private static String valueToString(Object value) {
-		if (value == null) return nullValue;
-		if (value instanceof Date) return dateFormat.format(value);
-		return value.toString();
-	}
-
-	private static String[] toStringArray(Collection<String> list) {
-		return list.toArray(new String[list.size()]);
+		if (Boolean.parseBoolean(config.getProperty("cache"))) {
+			options.resultCache = new ResultCache(Paths.get(config.getProperty("cacheDir")),
+					TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("cacheTtl"))),
+					Long.parseLong(config.getProperty("cacheMemory")),
+					Long.parseLong(config.getProperty("cacheDisk")),
+					Long.parseLong(config.getProperty("cacheMaxEntry")),
+					Boolean.parseBoolean(config.getProperty("cacheFingerprint")));
+		}
+		return options;
 	}
 
 	private static String getRequiredPropertyWithExample(Properties config, String property, String example)
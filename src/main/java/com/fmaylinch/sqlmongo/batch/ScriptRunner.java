@@ -0,0 +1,209 @@
+package com.fmaylinch.sqlmongo.batch;
+
+import com.fmaylinch.sqlmongo.output.ExplainPrinter;
+import com.fmaylinch.sqlmongo.output.ResultPrinter;
+import com.fmaylinch.sqlmongo.parser.QueryOptions;
+import com.fmaylinch.sqlmongo.parser.SqlParser;
+import com.fmaylinch.sqlmongo.tokenizer.SpanTokenizer;
+import com.fmaylinch.sqlmongo.tokenizer.Token;
+import com.mongodb.DB;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Runs a script of `;`-separated statements concurrently on a fixed pool of threads that share one DB.
+ * Each result is written to its own file, and timing and failures of each statement are reported to stderr
+ * (a failing statement doesn't abort the others).
+ */
+public class ScriptRunner {
+
+	private final DB db;
+	private final ResultPrinter printer;
+
+	private QueryOptions options = new QueryOptions();
+
+	public ScriptRunner(DB db, ResultPrinter printer) {
+		this.db = db;
+		this.printer = printer;
+	}
+
+	public void setOptions(QueryOptions options) {
+		this.options = options;
+	}
+
+	/** Splits the script by `;` symbols (not the ones inside strings or comments) */
+	public static List<String> splitStatements(String script)
+	{
+		SpanTokenizer tokenizer = new SpanTokenizer(script);
+
+		List<String> statements = new ArrayList<>();
+		int start = -1;
+
+		while (true) {
+			int token = tokenizer.skipNextToken();
+			Token.Type type = tokenizer.getType(token);
+
+			if (type == Token.Type.END || tokenizer.isToken(token, Token.Type.SYMBOL, ";")) {
+				if (start >= 0) {
+					statements.add(script.substring(start, tokenizer.getStart(token)).trim());
+					start = -1;
+				}
+				if (type == Token.Type.END) return statements;
+			} else if (start < 0) {
+				start = tokenizer.getStart(token);
+			}
+		}
+	}
+
+	/**
+	 * Parses all statements and then runs the ones that are right, up to threads at the same time.
+	 * The result of statement n (from 1) is written to {@link #outputFile}.
+	 * @return number of statements that failed
+	 */
+	public int run(String scriptFile, String output, int threads) throws IOException
+	{
+		String script = new String(Files.readAllBytes(Paths.get(scriptFile)), StandardCharsets.UTF_8);
+		List<String> statements = splitStatements(script);
+
+		System.err.println("Running " + statements.size() + " statements of " + scriptFile
+				+ " with " + threads + " threads");
+
+		int failures = 0;
+		List<SqlParser> parsers = new ArrayList<>();
+		List<SqlParser.ParseResult> results = new ArrayList<>();
+
+		for (int i = 0; i < statements.size(); i++) {
+			SqlParser parser = new SqlParser(statements.get(i), db);
+			parser.setOptions(options);
+			try {
+				results.add(parser.parseQuery());
+				parsers.add(parser);
+			} catch (RuntimeException e) {
+				report(i, "failed to parse: " + e.getMessage());
+				results.add(null);
+				parsers.add(null);
+				failures++;
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < parsers.size(); i++) {
+				final int index = i;
+				final SqlParser parser = parsers.get(i);
+				final SqlParser.ParseResult result = results.get(i);
+				futures.add(parser == null ? null : pool.submit(() -> {
+					runStatement(index, parser, result, scriptFile, output);
+					return null;
+				}));
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				if (futures.get(i) == null) continue;
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					report(i, "failed: " + e.getCause().getMessage());
+					failures++;
+				}
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		System.err.println("Done: " + (statements.size() - failures) + " statements ok, " + failures + " failed");
+
+		return failures;
+	}
+
+	/**
+	 * File for the result of statement i (from 0): for text output (horizontal, vertical or explain) it's
+	 * the script file with a number and .txt (e.g. report-1.txt for report.sql);
+	 * otherwise output is a CSV file name that gets the number (e.g. report-1.csv for report.csv).
+	 */
+	public static String outputFile(String scriptFile, String output, int i)
+	{
+		boolean text = output.equals("horizontal") || output.equals("vertical") || output.equals("explain");
+		String file = text ? scriptFile : output;
+
+		int dot = file.lastIndexOf('.');
+		int slash = file.lastIndexOf('/');
+		String base = dot > slash + 1 ? file.substring(0, dot) : file;
+		String extension = text ? ".txt" : dot > slash + 1 ? file.substring(dot) : "";
+
+		return base + "-" + (i + 1) + extension;
+	}
+
+	private void runStatement(int i, SqlParser parser, SqlParser.ParseResult result,
+							  String scriptFile, String output) throws IOException
+	{
+		long start = System.nanoTime();
+
+		if (result.explain) {
+			output = "explain";
+		} else if (result.fields.isEmpty()) {
+			output = "vertical"; // all fields can only be printed vertically
+		}
+
+		String file = outputFile(scriptFile, output, i);
+
+		parser.run();
+
+		long rows;
+		switch (output) {
+			case "explain":
+				try (Writer out = textFile(file)) {
+					out.write(ExplainPrinter.describe(result));
+				}
+				rows = 0;
+				break;
+			case "horizontal":
+				try (Writer out = textFile(file)) {
+					rows = printer.printHorizontal(result.cursor, result.fields, out);
+				}
+				break;
+			case "vertical":
+				try (Writer out = textFile(file)) {
+					rows = printer.printVertical(result.cursor, result.fields, out);
+				}
+				break;
+			default:
+				rows = printer.printCsv(result.cursor, result.fields,
+						FileChannel.open(Paths.get(file), CREATE, WRITE, TRUNCATE_EXISTING));
+				break;
+		}
+
+		long millis = (System.nanoTime() - start) / 1_000_000;
+		report(i, rows + " rows in " + millis + " ms -> " + file);
+	}
+
+	private static Writer textFile(String file) throws IOException {
+		return new OutputStreamWriter(Files.newOutputStream(Paths.get(file)), StandardCharsets.UTF_8);
+	}
+
+	private static void report(int i, String message) {
+		System.err.println("[" + (i + 1) + "] " + message);
+	}
+}
@@ -0,0 +1,38 @@
+package com.fmaylinch.sqlmongo.cache;
+
+import com.mongodb.DBCollection;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts of whole collections (from the collection metadata), kept for a while because they're only used
+ * for estimates (e.g. the rows of tablesample (p percent)).
+ */
+public class CountCache {
+
+	public static final CountCache INSTANCE = new CountCache(TimeUnit.MINUTES.toMillis(10));
+
+	private final long ttlMillis;
+
+	/** Count and time it was obtained, by {@link ResultCache#collectionKey} */
+	private final Map<String, long[]> counts = new ConcurrentHashMap<>();
+
+	public CountCache(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	public long count(DBCollection collection) {
+
+		String key = ResultCache.collectionKey(collection);
+		long now = System.currentTimeMillis();
+
+		long[] entry = counts.get(key);
+		if (entry == null || now - entry[1] > ttlMillis) {
+			entry = new long[] {collection.getCount(), now};
+			counts.put(key, entry);
+		}
+		return entry[0];
+	}
+}
@@ -0,0 +1,430 @@
+package com.fmaylinch.sqlmongo.cache;
+
+import com.fmaylinch.sqlmongo.metrics.QueryMetrics;
+import com.fmaylinch.sqlmongo.util.ListCursor;
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.ServerAddress;
+import org.bson.BSON;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Cache of query results by key (the translated query, see {@link #normalize}).
+ *
+ * Results are kept in memory in a LRU bounded by their BSON size. The ones evicted from memory (or too big
+ * for it) are spilled to one file per key in a directory, and so are the ones left in memory when the cache
+ * is closed, so other runs can use them. Entries expire after a TTL and, optionally, when the fingerprint
+ * of the collection changes (count and max _id, see {@link #fingerprint}). Results bigger than maxEntryBytes
+ * are not cached.
+ */
+public class ResultCache {
+
+	private static final int MAGIC = 0x53514d43; // SQMC
+	private static final int VERSION = 1;
+
+	private final Path directory;
+	private final long ttlMillis;
+	private final long memoryBytes;
+	private final long diskBytes;
+	private final long maxEntryBytes;
+	private final boolean useFingerprint;
+
+	/** Most recently used last */
+	private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryUsed;
+
+	private static class Entry {
+		final String key;
+		final long createdAt;
+		final String fingerprint;
+		final List<DBObject> documents;
+		final long bytes;
+		/** If it was read from its file, so it's not written again when evicted */
+		final boolean inFile;
+
+		Entry(String key, long createdAt, String fingerprint, List<DBObject> documents, long bytes, boolean inFile) {
+			this.key = key;
+			this.createdAt = createdAt;
+			this.fingerprint = fingerprint;
+			this.documents = documents;
+			this.bytes = bytes;
+			this.inFile = inFile;
+		}
+	}
+
+	public ResultCache(Path directory, long ttlMillis, long memoryBytes, long diskBytes, long maxEntryBytes,
+					   boolean useFingerprint) {
+		this.directory = directory;
+		this.ttlMillis = ttlMillis;
+		this.memoryBytes = memoryBytes;
+		this.diskBytes = diskBytes;
+		this.maxEntryBytes = maxEntryBytes;
+		this.useFingerprint = useFingerprint;
+	}
+
+
+	// Keys
+
+	/**
+	 * Text of the object with the keys of documents sorted, so the order of conditions doesn't matter
+	 * (not for sorts, where the order of the keys matters).
+	 */
+	public static String normalize(Object object) {
+
+		if (object instanceof DBObject && !(object instanceof List)) {
+			DBObject document = (DBObject) object;
+			Map<String, Object> sorted = new TreeMap<>();
+			for (String key : document.keySet()) {
+				sorted.put(key, normalize(document.get(key)));
+			}
+			return sorted.entrySet().stream()
+					.map(e -> e.getKey() + ":" + e.getValue())
+					.collect(Collectors.joining(",", "{", "}"));
+		}
+
+		if (object instanceof List) {
+			return ((List<?>) object).stream().map(ResultCache::normalize).collect(Collectors.joining(",", "[", "]"));
+		}
+
+		return object == null ? "null" : object.getClass().getSimpleName() + "(" + object + ")";
+	}
+
+	/** Identifies the server and collection, to be part of the keys */
+	public static String collectionKey(DBCollection collection) {
+		List<ServerAddress> addresses = collection.getDB().getMongo().getServerAddressList();
+		return addresses + "/" + collection.getFullName();
+	}
+
+	/** Count and max _id of the collection (or null if fingerprints are not used) */
+	public String fingerprint(DBCollection collection) {
+
+		if (!useFingerprint) return null;
+
+		DBCursor last = collection.find(MongoUtil.obj(), MongoUtil.obj("_id", 1))
+				.sort(MongoUtil.obj("_id", -1)).limit(1);
+		Object maxId = last.hasNext() ? last.next().get("_id") : null;
+		last.close();
+
+		return collection.getCount() + "/" + maxId;
+	}
+
+
+	// Lookup
+
+	/** Returns a cursor over the cached result, or null if there's no valid result for the key */
+	public Cursor get(String key, String fingerprint) {
+
+		Entry entry;
+		synchronized (this) {
+			entry = memory.get(key);
+		}
+
+		if (entry == null) {
+			entry = readFile(key);
+			if (entry != null && isValid(entry, fingerprint)) {
+				spill(putInMemory(entry));
+			}
+		}
+
+		if (entry == null || !isValid(entry, fingerprint)) {
+			QueryMetrics.INSTANCE.addCacheMiss();
+			return null;
+		}
+
+		QueryMetrics.INSTANCE.addCacheHit();
+		return new ListCursor(entry.documents);
+	}
+
+	/**
+	 * Returns a cursor that gives the documents of the given one and, when they have been all read,
+	 * caches them (unless they are more than maxEntryBytes).
+	 */
+	public Cursor record(String key, String fingerprint, Cursor cursor) {
+		return new RecordingCursor(key, fingerprint, cursor);
+	}
+
+	private boolean isValid(Entry entry, String fingerprint) {
+		return System.currentTimeMillis() - entry.createdAt <= ttlMillis
+				&& (fingerprint == null || fingerprint.equals(entry.fingerprint));
+	}
+
+	private void put(Entry entry) {
+		spill(putInMemory(entry));
+	}
+
+	/** Writes the entries left in memory to files, so later runs can use them */
+	public void close() {
+
+		List<Entry> entries;
+		synchronized (this) {
+			entries = new ArrayList<>(memory.values());
+			memory.clear();
+			memoryUsed = 0;
+		}
+		spill(entries);
+	}
+
+	/** Returns the entries evicted to make room for this one (or this one, if it doesn't fit in memory) */
+	private synchronized List<Entry> putInMemory(Entry entry) {
+
+		List<Entry> evicted = new ArrayList<>();
+
+		if (entry.bytes > memoryBytes) {
+			evicted.add(entry);
+			return evicted;
+		}
+
+		Entry previous = memory.put(entry.key, entry);
+		if (previous != null) memoryUsed -= previous.bytes;
+		memoryUsed += entry.bytes;
+
+		Iterator<Entry> eldest = memory.values().iterator();
+		while (memoryUsed > memoryBytes && eldest.hasNext()) {
+			Entry next = eldest.next();
+			memoryUsed -= next.bytes;
+			eldest.remove();
+			evicted.add(next);
+		}
+		return evicted;
+	}
+
+	/** Writes the entries that are not in their files yet (outside the lock, as it may take a while) */
+	private void spill(List<Entry> entries) {
+		for (Entry entry : entries) {
+			if (entry.inFile || !isValid(entry, null)) continue;
+			try {
+				writeFile(entry);
+			} catch (IOException e) {
+				System.err.println("Could not write result to cache: " + e.getMessage());
+			}
+		}
+	}
+
+
+	// Files: header (magic, version, created at, fingerprint, key, number of documents) and documents as BSON
+
+	private Path file(String key) {
+		return directory.resolve(hash(key) + ".bson");
+	}
+
+	/** SHA-256 of the key in hex, to use it as a file name */
+	public static String hash(String key) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash) {
+				name.append(String.format("%02x", b));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Entry readFile(String key) {
+
+		Path file = file(key);
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+			long createdAt = in.readLong();
+			String fingerprint = readString(in);
+			String fileKey = readString(in);
+			int count = in.readInt();
+
+			if (!fileKey.equals(key)) return null; // hash collision
+
+			if (System.currentTimeMillis() - createdAt > ttlMillis) {
+				in.close();
+				Files.deleteIfExists(file);
+				return null;
+			}
+
+			DefaultDBDecoder decoder = new DefaultDBDecoder();
+			List<DBObject> documents = new ArrayList<>(count);
+			long bytes = 0;
+
+			for (int i = 0; i < count; i++) {
+				int size = Integer.reverseBytes(in.readInt()); // BSON documents start with their size (little endian)
+				byte[] document = new byte[size];
+				document[0] = (byte) size;
+				document[1] = (byte) (size >> 8);
+				document[2] = (byte) (size >> 16);
+				document[3] = (byte) (size >> 24);
+				in.readFully(document, 4, size - 4);
+				documents.add(decoder.decode(document, (DBCollection) null));
+				bytes += size;
+			}
+
+			return new Entry(key, createdAt, fingerprint, documents, bytes, true);
+
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Could not read result from cache: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void writeFile(Entry entry) throws IOException {
+
+		Files.createDirectories(directory);
+
+		Path file = file(entry.key);
+		Path temp = Files.createTempFile(directory, "entry", ".tmp");
+
+		try (FileChannel channel = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+
+			byte[] fingerprint = String.valueOf(entry.fingerprint).getBytes(StandardCharsets.UTF_8);
+			byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+
+			ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8 + 4 + fingerprint.length + 4 + key.length + 4);
+			header.putInt(MAGIC).putInt(VERSION).putLong(entry.createdAt);
+			header.putInt(fingerprint.length).put(fingerprint);
+			header.putInt(key.length).put(key);
+			header.putInt(entry.documents.size());
+			header.flip();
+			writeFully(channel, header);
+
+			for (DBObject document : entry.documents) {
+				writeFully(channel, ByteBuffer.wrap(BSON.encode(document)));
+			}
+		}
+
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		evictFiles();
+	}
+
+	/** Deletes the oldest files while the directory is bigger than diskBytes */
+	private void evictFiles() throws IOException {
+
+		List<Path> files;
+		try (Stream<Path> list = Files.list(directory)) {
+			files = list.filter(f -> f.toString().endsWith(".bson"))
+					.sorted(Comparator.comparingLong(ResultCache::lastModified))
+					.collect(Collectors.toList());
+		}
+
+		long used = 0;
+		for (Path f : files) {
+			used += f.toFile().length();
+		}
+
+		for (Path f : files) {
+			if (used <= diskBytes) break;
+			used -= f.toFile().length();
+			Files.deleteIfExists(f);
+		}
+	}
+
+	private static long lastModified(Path file) {
+		return file.toFile().lastModified();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	/** Collects the documents while they are read, and caches them if the cursor is read to the end */
+	private class RecordingCursor implements Cursor {
+
+		private final String key;
+		private final String fingerprint;
+		private final Cursor cursor;
+		private final long createdAt = System.currentTimeMillis();
+
+		private List<DBObject> documents = new ArrayList<>();
+		private long bytes;
+		private boolean finished;
+
+		RecordingCursor(String key, String fingerprint, Cursor cursor) {
+			this.key = key;
+			this.fingerprint = fingerprint;
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			boolean hasNext = cursor.hasNext();
+			if (!hasNext && !finished) {
+				finished = true;
+				if (documents != null) {
+					put(new Entry(key, createdAt, fingerprint, documents, bytes, false));
+				}
+			}
+			return hasNext;
+		}
+
+		@Override
+		public DBObject next() {
+
+			DBObject document = cursor.next();
+
+			if (documents != null) {
+				bytes += BSON.encode(document).length;
+				if (bytes > maxEntryBytes) {
+					documents = null; // too big, stop recording
+				} else {
+					documents.add(document);
+				}
+			}
+			return document;
+		}
+
+		@Override
+		public long getCursorId() {
+			return cursor.getCursorId();
+		}
+
+		@Override
+		public ServerAddress getServerAddress() {
+			return cursor.getServerAddress();
+		}
+
+		@Override
+		public void close() {
+			cursor.close();
+		}
+	}
+}
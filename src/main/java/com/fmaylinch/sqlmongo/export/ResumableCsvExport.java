@@ -0,0 +1,283 @@
+package com.fmaylinch.sqlmongo.export;
+
+import com.fmaylinch.sqlmongo.output.CsvWriter;
+import com.fmaylinch.sqlmongo.output.FieldAccessor;
+import com.fmaylinch.sqlmongo.parallel.ParallelCsvExport;
+import com.fmaylinch.sqlmongo.parser.IndexPlanner;
+import com.fmaylinch.sqlmongo.parser.QueryHints;
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.QueryOperators;
+import com.mongodb.util.JSON;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Properties;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Exports to CSV sorted by a unique key, writing a checkpoint file (the CSV file plus ".checkpoint")
+ * every some rows with the last key written and the size of the CSV file at that point.
+ *
+ * If an export is interrupted, running it again truncates the CSV file to the checkpoint and continues
+ * with the documents whose key is greater than the last one. In {@link Mode#INCREMENTAL} mode, once an
+ * export has finished, next runs append to the CSV file the documents with a key greater than the last one
+ * exported, so it keeps all of them (the key should grow with new documents, like ObjectIds; updates of
+ * exported documents are not seen). If the CSV file is missing or shorter than the checkpoint, everything is exported.
+ */
+public class ResumableCsvExport {
+
+	public enum Mode {
+		/** Continue an interrupted export, otherwise export everything */
+		RESUME,
+		/** Like RESUME, but after a finished export only append newer documents */
+		INCREMENTAL
+	}
+
+	private static final String ID = "_id";
+
+	private final DBCollection collection;
+	private final DBObject query;
+	private final DBObject projection;
+	private final Collection<String> header;
+	private final ParallelCsvExport.RowWriter rowWriter;
+	private final String keyField;
+
+	private char separator = ',';
+	private int bufferSize = 1 << 20;
+	private boolean lazyDecoding = false;
+	private QueryHints hints = new QueryHints();
+	private int checkpointRows = 10000;
+
+	/** The projection is extended with the key field if necessary */
+	public ResumableCsvExport(DBCollection collection, DBObject query, DBObject projection,
+							  Collection<String> header, ParallelCsvExport.RowWriter rowWriter, String keyField) {
+		this.collection = collection;
+		this.query = query;
+		this.projection = withKey(projection, keyField);
+		this.header = header;
+		this.rowWriter = rowWriter;
+		this.keyField = keyField;
+	}
+
+	public void setSeparator(char separator) {
+		this.separator = separator;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/** See {@link com.fmaylinch.sqlmongo.parser.QueryOptions#lazyDecoding} */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	/** Hints applied to the cursors (e.g. batch size or read preference) */
+	public void setHints(QueryHints hints) {
+		this.hints = hints;
+	}
+
+	/** Rows written between checkpoints */
+	public void setCheckpointRows(int checkpointRows) {
+		this.checkpointRows = checkpointRows;
+	}
+
+	public static String checkpointFile(String csvFile) {
+		return csvFile + ".checkpoint";
+	}
+
+	/**
+	 * Exports to the csv file, continuing from the checkpoint if there is one (see {@link Mode}).
+	 * @return rows written in this run
+	 */
+	public long export(String csvFile, Mode mode) throws IOException {
+
+		checkUniqueKey();
+
+		Path file = Paths.get(csvFile);
+		Path checkpointFile = Paths.get(checkpointFile(csvFile));
+
+		Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+
+		if (checkpoint != null && !checkpoint.query.equals(queryId())) {
+			throw new IllegalArgumentException("The checkpoint " + checkpointFile + " is for another query: "
+					+ checkpoint.query + " (delete it to start again)");
+		}
+
+		boolean resume = checkpoint != null && !checkpoint.finished && Files.exists(file);
+		boolean incremental = checkpoint != null && checkpoint.finished && mode == Mode.INCREMENTAL
+				&& Files.exists(file) && Files.size(file) >= checkpoint.offset;
+
+		if (!resume && !incremental) {
+			checkpoint = null; // export everything
+		}
+
+		FileChannel channel = FileChannel.open(file, CREATE, WRITE);
+
+		try (CsvWriter writer = new CsvWriter(channel, separator, bufferSize)) {
+
+			if (resume || incremental) {
+				System.out.println((resume ? "Resuming export" : "Appending documents") + " after " + keyField + " "
+						+ checkpoint.lastKey + " (" + checkpoint.rows + " rows already written)");
+				channel.truncate(checkpoint.offset);
+				channel.position(checkpoint.offset);
+			} else {
+				channel.truncate(0);
+				writer.writeRow(header);
+			}
+
+			Checkpoint next = new Checkpoint();
+			next.query = queryId();
+			next.lastKey = checkpoint != null ? checkpoint.lastKey : null;
+			next.rows = checkpoint != null ? checkpoint.rows : 0;
+
+			long rows = write(writer, channel, checkpointFile, next);
+
+			next.finished = true;
+			saveCheckpoint(writer, channel, checkpointFile, next);
+
+			return rows;
+		}
+	}
+
+	private long write(CsvWriter writer, FileChannel channel, Path checkpointFile, Checkpoint checkpoint) {
+
+		DBObject rangeQuery = checkpoint.lastKey == null ? query : after(checkpoint.lastKey);
+
+		DBCursor cursor = collection.find(rangeQuery, projection).sort(MongoUtil.obj(keyField, 1));
+		if (lazyDecoding) cursor.setDecoderFactory(LazyDBDecoder.FACTORY);
+		hints.apply(cursor);
+
+		FieldAccessor key = FieldAccessor.compile(keyField);
+		long[] rows = {0};
+
+		MongoUtil.process(cursor, object -> {
+
+			rowWriter.write(writer, object);
+			rows[0]++;
+
+			checkpoint.lastKey = key.get(object);
+			checkpoint.rows++;
+
+			if (rows[0] % checkpointRows == 0) {
+				saveCheckpoint(writer, channel, checkpointFile, checkpoint);
+			}
+		});
+
+		return rows[0];
+	}
+
+	/** Flushes the rows written so far and then writes the checkpoint (replacing the previous one) */
+	private static void saveCheckpoint(CsvWriter writer, FileChannel channel, Path checkpointFile,
+									   Checkpoint checkpoint) {
+		try {
+			writer.flush();
+			channel.force(false);
+			checkpoint.offset = channel.position();
+			checkpoint.write(checkpointFile);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write checkpoint " + checkpointFile, e);
+		}
+	}
+
+	/** The query restricted to keys greater than the given one */
+	private DBObject after(Object lastKey) {
+
+		DBObject range = MongoUtil.obj(QueryOperators.GT, lastKey);
+
+		if (!query.containsField(keyField)) {
+			return new BasicDBObject(query.toMap()).append(keyField, range);
+		}
+		return MongoUtil.obj(QueryOperators.AND, Arrays.asList(query, MongoUtil.obj(keyField, range)));
+	}
+
+	/** Identifies the export, so a checkpoint isn't used for a different one */
+	private String queryId() {
+		return collection.getFullName() + " " + JSON.serialize(query) + " " + JSON.serialize(projection)
+				+ " columns " + header + " key " + keyField;
+	}
+
+	/** The key must be unique, so no document is skipped or repeated when resuming after it */
+	private void checkUniqueKey() {
+		if (!IndexPlanner.isUniqueKey(collection, keyField)) {
+			throw new IllegalArgumentException("Resumable exports need a unique index on " + keyField + " (or use _id)");
+		}
+	}
+
+	/** Adds the key to a projection that has included fields, or includes _id if it's excluded */
+	private static DBObject withKey(DBObject projection, String keyField) {
+
+		if (projection == null || projection.keySet().isEmpty()) return projection;
+
+		BasicDBObject result = new BasicDBObject(projection.toMap());
+		if (keyField.equals(ID)) {
+			if (Integer.valueOf(0).equals(result.get(ID))) result.removeField(ID);
+		} else if (!result.containsField(keyField)) {
+			result.append(keyField, 1);
+		}
+		return result;
+	}
+
+
+	/** Progress of an export, saved as a properties file (the key is saved as extended JSON to keep its type) */
+	private static class Checkpoint {
+
+		String query;
+		Object lastKey;
+		long offset;
+		long rows;
+		boolean finished;
+
+		static Checkpoint read(Path file) throws IOException {
+
+			if (!Files.exists(file)) return null;
+
+			Properties properties = new Properties();
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				properties.load(reader);
+			}
+
+			Checkpoint checkpoint = new Checkpoint();
+			checkpoint.query = properties.getProperty("query");
+			checkpoint.lastKey = ((DBObject) JSON.parse(properties.getProperty("lastKey"))).get("key");
+			checkpoint.offset = Long.parseLong(properties.getProperty("offset"));
+			checkpoint.rows = Long.parseLong(properties.getProperty("rows"));
+			checkpoint.finished = Boolean.parseBoolean(properties.getProperty("finished"));
+			return checkpoint;
+		}
+
+		/** Writes to a temporary file that then replaces the checkpoint, so it's never left half written */
+		void write(Path file) throws IOException {
+
+			Properties properties = new Properties();
+			properties.setProperty("query", query);
+			properties.setProperty("lastKey", JSON.serialize(MongoUtil.obj("key", lastKey)));
+			properties.setProperty("offset", String.valueOf(offset));
+			properties.setProperty("rows", String.valueOf(rows));
+			properties.setProperty("finished", String.valueOf(finished));
+
+			Path temp = Paths.get(file + ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8, CREATE, WRITE, TRUNCATE_EXISTING)) {
+				properties.store(writer, "Export checkpoint");
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.fmaylinch.sqlmongo.join;
+
+import com.fmaylinch.sqlmongo.output.FieldAccessor;
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+import com.mongodb.ServerAddress;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Joins the documents of a cursor with the documents of another collection (e.g. in another database)
+ * where the local field equals the foreign field. Each joined document has the foreign one in the field "as".
+ *
+ * Driving documents are read in batches; the foreign documents of each batch are found with one $in query
+ * and kept in a hash table by key until the batch is joined, so memory is bounded by the batch size.
+ * The order of the driving cursor is kept.
+ */
+public class HashJoinCursor implements Cursor {
+
+	private final Cursor driving;
+	private final DBCollection foreign;
+	private final FieldAccessor localField;
+	private final String foreignField;
+	private final FieldAccessor foreignKey;
+	private final DBObject foreignQuery;
+	private final String as;
+	private final boolean left;
+	private final int batchSize;
+
+	private final Deque<DBObject> joined = new ArrayDeque<>();
+	private long toSkip;
+	private long remaining = Long.MAX_VALUE;
+
+	/**
+	 * @param foreignQuery conditions for the foreign documents (empty for none)
+	 * @param left if driving documents without foreign ones are also returned (without the "as" field)
+	 */
+	public HashJoinCursor(Cursor driving, String localField, DBCollection foreign, String foreignField,
+						  DBObject foreignQuery, String as, boolean left, int batchSize) {
+		this.driving = driving;
+		this.localField = FieldAccessor.compile(localField);
+		this.foreign = foreign;
+		this.foreignField = foreignField;
+		this.foreignKey = FieldAccessor.compile(foreignField);
+		this.foreignQuery = foreignQuery;
+		this.as = as;
+		this.left = left;
+		this.batchSize = batchSize;
+	}
+
+	/** Skips the first joined documents and returns at most limit (0 for no limit) */
+	public void setSkipAndLimit(int skip, int limit) {
+		this.toSkip = skip;
+		this.remaining = limit > 0 ? limit : Long.MAX_VALUE;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (joined.isEmpty() && remaining > 0 && driving.hasNext()) {
+			joinNextBatch();
+		}
+		return !joined.isEmpty() && remaining > 0;
+	}
+
+	@Override
+	public DBObject next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		remaining--;
+		return joined.poll();
+	}
+
+	private void joinNextBatch() {
+
+		List<DBObject> batch = new ArrayList<>(batchSize);
+		Set<Object> keys = new LinkedHashSet<>();
+		List<Object> keyValues = new ArrayList<>();
+
+		while (batch.size() < batchSize && driving.hasNext()) {
+			DBObject object = driving.next();
+			batch.add(object);
+			Object key = localField.get(object);
+			if (key != null && keys.add(hashKey(key))) {
+				keyValues.add(key);
+			}
+		}
+
+		Map<Object, List<DBObject>> table = new HashMap<>();
+
+		if (!keyValues.isEmpty()) {
+
+			DBObject keyCondition = MongoUtil.obj(foreignField, MongoUtil.obj(QueryOperators.IN, keyValues));
+			DBObject query = foreignQuery.keySet().isEmpty() ? keyCondition
+					: MongoUtil.obj(QueryOperators.AND, Arrays.asList(foreignQuery, keyCondition));
+
+			DBCursor cursor = foreign.find(query);
+			try {
+				while (cursor.hasNext()) {
+					DBObject object = cursor.next();
+					table.computeIfAbsent(hashKey(foreignKey.get(object)), k -> new ArrayList<>()).add(object);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		for (DBObject object : batch) {
+			Object key = localField.get(object);
+			List<DBObject> matches = key == null ? null : table.get(hashKey(key));
+			if (matches != null) {
+				for (DBObject match : matches) add(object, match);
+			} else if (left) {
+				add(object, null);
+			}
+		}
+	}
+
+	private void add(DBObject object, DBObject match) {
+
+		if (toSkip > 0) {
+			toSkip--;
+			return;
+		}
+
+		BasicDBObject result = new BasicDBObject();
+		for (String key : object.keySet()) {
+			result.put(key, object.get(key));
+		}
+		if (match != null) {
+			result.put(as, match);
+		}
+		joined.add(result);
+	}
+
+	/** Numbers of different types are equal in mongo if their value is */
+	private static Object hashKey(Object value) {
+		return value instanceof Number ? (Object) ((Number) value).doubleValue() : value;
+	}
+
+	@Override
+	public long getCursorId() {
+		return driving.getCursorId();
+	}
+
+	@Override
+	public ServerAddress getServerAddress() {
+		return driving.getServerAddress();
+	}
+
+	@Override
+	public void close() {
+		driving.close();
+	}
+}
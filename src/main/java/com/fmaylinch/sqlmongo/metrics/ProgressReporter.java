@@ -0,0 +1,47 @@
+package com.fmaylinch.sqlmongo.metrics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Prints a line with the documents and bytes processed to stderr periodically (when there's progress) */
+public class ProgressReporter implements AutoCloseable {
+
+	private final QueryMetrics metrics;
+	private final ScheduledExecutorService scheduler;
+
+	private long lastDocuments;
+	private long lastNanos = System.nanoTime();
+
+	public ProgressReporter(QueryMetrics metrics, int intervalSeconds) {
+
+		this.metrics = metrics;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "progress");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	private void report() {
+
+		long documents = metrics.getDocuments();
+		long nanos = System.nanoTime();
+
+		if (documents == lastDocuments) return; // idle (e.g. server mode)
+		double rate = (documents - lastDocuments) * 1e9 / (nanos - lastNanos);
+
+		System.err.println(String.format("Progress: %d documents (%.0f docs/s), %d bytes written",
+				documents, rate, metrics.getBytesWritten()));
+
+		lastDocuments = documents;
+		lastNanos = nanos;
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,218 @@
+package com.fmaylinch.sqlmongo.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and times of all queries run by this process (several queries may run at the same time
+ * in batch or server mode). The stages of a query are:
+ * <ul>
+ *     <li>parse: from SQL to the mongo query</li>
+ *     <li>execute: sending the query (commands like count or aggregate run here; find queries are lazy)</li>
+ *     <li>fetch: waiting for documents from the cursor (including the first batch of find queries)</li>
+ *     <li>process: extracting, formatting and writing the values of each document</li>
+ *     <li>write: writing the output to its destination (part of process, as it happens when buffers are full)</li>
+ * </ul>
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+	public static final QueryMetrics INSTANCE = new QueryMetrics();
+
+	public static final String OBJECT_NAME = "com.fmaylinch.sqlmongo:type=QueryMetrics";
+
+	public enum Stage { PARSE, EXECUTE, FETCH, PROCESS, WRITE }
+
+	/** When the first query started (0 until then) */
+	private volatile long startNanos;
+
+	/** If times of each document are recorded (see {@link #setTiming}) */
+	private volatile boolean timing;
+
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder documents = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+
+	/** Time since the cursor is iterated until the first document arrives */
+	private final Histogram timeToFirstRow = new Histogram();
+	/** Time waiting for each document (most are in memory; the rest wait for a batch) */
+	private final Histogram fetchLatency = new Histogram();
+
+	private QueryMetrics() {
+		for (int i = 0; i < stageNanos.length; i++) {
+			stageNanos[i] = new LongAdder();
+		}
+	}
+
+	/** Registers this in the platform MBean server (if not registered yet) */
+	public void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/**
+	 * Records the fetch and process times of each document, and the time to first row.
+	 * Off by default, as it takes a few calls to System.nanoTime() per document; only worth it
+	 * when the metrics are printed or exposed.
+	 */
+	public void setTiming(boolean timing) {
+		this.timing = timing;
+	}
+
+	public boolean isTiming() {
+		return timing;
+	}
+
+
+	// Recording
+
+	public void queryStarted() {
+		if (startNanos == 0) {
+			startNanos = System.nanoTime();
+		}
+		queries.increment();
+	}
+
+	public void addStage(Stage stage, long nanos) {
+		stageNanos[stage.ordinal()].add(nanos);
+	}
+
+	public void addFirstRow(long nanos) {
+		timeToFirstRow.record(nanos);
+	}
+
+	public void addFetch(long nanos) {
+		fetchLatency.record(nanos);
+		stageNanos[Stage.FETCH.ordinal()].add(nanos);
+	}
+
+	public void addDocuments(long count) {
+		documents.add(count);
+	}
+
+	public void addBatches(long count) {
+		batches.add(count);
+	}
+
+	public void addCacheHit() {
+		cacheHits.increment();
+	}
+
+	public void addCacheMiss() {
+		cacheMisses.increment();
+	}
+
+	public void addWrite(long bytes, long nanos) {
+		bytesWritten.add(bytes);
+		stageNanos[Stage.WRITE.ordinal()].add(nanos);
+	}
+
+
+	// Reading
+
+	@Override
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	@Override
+	public long getDocuments() {
+		return documents.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	/** Documents per second since the first query started */
+	@Override
+	public double getDocumentsPerSecond() {
+		long nanos = System.nanoTime() - startNanos;
+		return startNanos != 0 && nanos > 0 ? getDocuments() * 1e9 / nanos : 0;
+	}
+
+	public long getStageNanos(Stage stage) {
+		return stageNanos[stage.ordinal()].sum();
+	}
+
+	@Override
+	public long getParseMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getStageNanos(Stage.PARSE));
+	}
+
+	@Override
+	public long getExecuteMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getStageNanos(Stage.EXECUTE));
+	}
+
+	@Override
+	public long getFetchMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getStageNanos(Stage.FETCH));
+	}
+
+	@Override
+	public long getProcessMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getStageNanos(Stage.PROCESS));
+	}
+
+	@Override
+	public long getWriteMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getStageNanos(Stage.WRITE));
+	}
+
+	@Override
+	public long getTimeToFirstRowP50Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(timeToFirstRow.percentile(50));
+	}
+
+	@Override
+	public long getTimeToFirstRowP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(timeToFirstRow.percentile(99));
+	}
+
+	@Override
+	public long getFetchLatencyP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(fetchLatency.percentile(99));
+	}
+
+	/** Multi-line summary of all the metrics */
+	public String summary() {
+		return String.format("Queries: %d, documents: %d (%.0f docs/s), batches: %d, bytes written: %d%n"
+						+ "Time (ms): parse %d, execute %d, fetch %d, process %d (write %d)%n"
+						+ "Time to first row (us): p50 %d, p99 %d; fetch latency p99 (us): %d%n"
+						+ "Result cache: %d hits, %d misses",
+				getQueries(), getDocuments(), getDocumentsPerSecond(), getBatches(), getBytesWritten(),
+				getParseMillis(), getExecuteMillis(), getFetchMillis(), getProcessMillis(), getWriteMillis(),
+				getTimeToFirstRowP50Micros(), getTimeToFirstRowP99Micros(), getFetchLatencyP99Micros(),
+				getCacheHits(), getCacheMisses());
+	}
+}
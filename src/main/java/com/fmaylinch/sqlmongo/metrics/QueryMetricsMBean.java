@@ -0,0 +1,35 @@
+package com.fmaylinch.sqlmongo.metrics;
+
+/** JMX view of {@link QueryMetrics} (times in milliseconds, latencies in microseconds) */
+public interface QueryMetricsMBean {
+
+	long getQueries();
+
+	long getDocuments();
+
+	long getBytesWritten();
+
+	long getBatches();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	double getDocumentsPerSecond();
+
+	long getParseMillis();
+
+	long getExecuteMillis();
+
+	long getFetchMillis();
+
+	long getProcessMillis();
+
+	long getWriteMillis();
+
+	long getTimeToFirstRowP50Micros();
+
+	long getTimeToFirstRowP99Micros();
+
+	long getFetchLatencyP99Micros();
+}
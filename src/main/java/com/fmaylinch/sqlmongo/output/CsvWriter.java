@@ -0,0 +1,185 @@
+package com.fmaylinch.sqlmongo.output;
+
+import com.fmaylinch.sqlmongo.metrics.QueryMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes CSV rows as UTF-8 bytes into a reusable buffer that is flushed to a channel.
+ *
+ * The output is the same as opencsv's CSVWriter with default settings:
+ * every value is quoted, quotes inside values are doubled, null values are left empty
+ * and lines end with '\n'.
+ *
+ * Several writers can share one channel (see {@link #shared}); then each one only flushes whole rows,
+ * so rows from different writers don't get mixed.
+ */
+public class CsvWriter implements Closeable {
+
+	private static final byte QUOTE = '"';
+	private static final byte LINE_END = '\n';
+	/** Written for unpaired surrogates, like the JDK UTF-8 encoder does */
+	private static final byte REPLACEMENT = '?';
+
+	private final WritableByteChannel channel;
+	private final byte[] separator;
+	/** If the channel is shared with other writers */
+	private final boolean shared;
+
+	private byte[] buffer;
+	private int position;
+	private boolean rowStarted;
+
+	public CsvWriter(WritableByteChannel channel, char separator, int bufferSize) {
+		this(channel, separator, bufferSize, false);
+	}
+
+	private CsvWriter(WritableByteChannel channel, char separator, int bufferSize, boolean shared) {
+		this.channel = channel;
+		this.separator = String.valueOf(separator).getBytes(StandardCharsets.UTF_8);
+		this.buffer = new byte[bufferSize];
+		this.shared = shared;
+	}
+
+	/**
+	 * Creates a writer for a channel that other writers also use.
+	 * Flushes are synchronized on the channel and happen only at the end of rows.
+	 * Closing this writer flushes it but doesn't close the channel.
+	 */
+	public static CsvWriter shared(WritableByteChannel channel, char separator, int bufferSize) {
+		return new CsvWriter(channel, separator, bufferSize, true);
+	}
+
+	/** Opens (or truncates) the given file for writing */
+	public static CsvWriter open(String file, char separator, int bufferSize) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(file), CREATE, WRITE, TRUNCATE_EXISTING);
+		return new CsvWriter(channel, separator, bufferSize);
+	}
+
+	/** Writes a whole row, e.g. the header */
+	public void writeRow(Collection<String> values) {
+		for (String value : values) {
+			writeValue(value);
+		}
+		endRow();
+	}
+
+	/** Writes next value of current row */
+	public void writeValue(String value) {
+
+		if (rowStarted) {
+			ensureCapacity(separator.length);
+			System.arraycopy(separator, 0, buffer, position, separator.length);
+			position += separator.length;
+		}
+		rowStarted = true;
+
+		if (value == null) return;
+
+		final int length = value.length();
+
+		// Worst case is 3 bytes per char (quotes take 2, surrogate pairs take 4 for 2 chars)
+		ensureCapacity(2 + 3 * length);
+
+		final byte[] buf = buffer;
+		int pos = position;
+
+		buf[pos++] = QUOTE;
+
+		for (int i = 0; i < length; i++) {
+
+			char c = value.charAt(i);
+
+			if (c < 0x80) {
+				if (c == QUOTE) buf[pos++] = QUOTE;
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (!Character.isSurrogate(c)) {
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buf[pos++] = (byte) (0xF0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else {
+				buf[pos++] = REPLACEMENT;
+			}
+		}
+
+		buf[pos++] = QUOTE;
+
+		position = pos;
+	}
+
+	/** Ends current row */
+	public void endRow() {
+		ensureCapacity(1);
+		buffer[position++] = LINE_END;
+		rowStarted = false;
+
+		if (shared && position >= buffer.length / 2) {
+			flush();
+		}
+	}
+
+	/** Writes buffered bytes to the channel */
+	public void flush() {
+		try {
+			long start = System.nanoTime();
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, position);
+			synchronized (channel) {
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+			}
+			QueryMetrics.INSTANCE.addWrite(position, System.nanoTime() - start);
+			position = 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			if (!shared) channel.close();
+		}
+	}
+
+	/**
+	 * Flushes the buffer if there isn't room for the given bytes, and grows it if still too small.
+	 * Shared writers don't flush here (we may be in the middle of a row), they just grow.
+	 */
+	private void ensureCapacity(int bytes) {
+		if (position + bytes > buffer.length) {
+			if (shared) {
+				buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, position + bytes));
+			} else {
+				flush();
+				if (bytes > buffer.length) {
+					buffer = new byte[bytes];
+				}
+			}
+		}
+	}
+}
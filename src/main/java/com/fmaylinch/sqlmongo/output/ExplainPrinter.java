@@ -0,0 +1,177 @@
+package com.fmaylinch.sqlmongo.output;
+
+import com.fmaylinch.sqlmongo.parser.SqlParser;
+import com.mongodb.DBObject;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes an explain query: the mongo query built from the SQL and a summary of the plan
+ * returned by the server (index used or collection scan, keys and documents examined, documents returned).
+ * Plans from mongo 3.x (queryPlanner and executionStats) and from older versions (cursor, nscanned...) are understood.
+ */
+public class ExplainPrinter {
+
+	private static final int PADDING = 16;
+
+	public static String describe(SqlParser.ParseResult result) {
+
+		StringBuilder sb = new StringBuilder();
+
+		line(sb, "Collection", result.collection.getName());
+
+		if (result.join != null) {
+			line(sb, "Join", result.join + (result.pipeline != null ? " ($lookup)" : " (in the client, by batches)"));
+		}
+
+		if (result.pipeline != null) {
+			for (DBObject stage : result.pipeline) {
+				line(sb, "Pipeline stage", stage);
+			}
+		} else {
+			if (result.schema != null) {
+				line(sb, "Columns", result.schema.columns.size() + " inferred from " + result.schema.sampled
+						+ " documents (select *): " + result.schema);
+			}
+			line(sb, "Filter", result.query);
+			line(sb, "Projection", result.projection);
+			line(sb, "Sort", result.orders + (result.clientSort ? " (in the client)" : ""));
+			line(sb, "Limit", result.limit > 0 ? result.limit : "none");
+			if (result.seekCondition != null) {
+				line(sb, "Seek", result.seekCondition + " (instead of offset)");
+			} else if (result.skip > 0) {
+				line(sb, "Skip", result.skip + " (no order by ending with a unique key to seek)");
+			}
+			if (result.indexName != null) {
+				line(sb, "Hint", result.indexName + " (use index)");
+			} else if (result.coveringIndex != null) {
+				line(sb, "Hint", result.coveringIndex + " (covers the query)");
+			}
+		}
+
+		DBObject plan = result.plan;
+
+		if (result.alwaysFalse) {
+			line(sb, "Plan", "not sent (the conditions can never match)");
+			return sb.toString();
+		}
+
+		if (plan == null) {
+			line(sb, "Plan", "not available (query runs as a count or distinct command)");
+			return sb.toString();
+		}
+
+		DBObject cursorStage = findCursorStage(plan);
+		if (cursorStage != null) {
+			plan = cursorStage; // aggregation: the plan is in the $cursor stage that reads the collection
+		}
+
+		if (plan.containsField("queryPlanner")) {
+			describeQueryPlanner(sb, plan);
+		} else if (plan.get("cursor") instanceof String) {
+			describeLegacy(sb, plan);
+		} else {
+			line(sb, "Plan", result.plan); // unknown format
+		}
+
+		return sb.toString();
+	}
+
+	/** Mongo 3.x: stages like LIMIT > FETCH > IXSCAN, and executionStats if present */
+	private static void describeQueryPlanner(StringBuilder sb, DBObject plan) {
+
+		DBObject queryPlanner = (DBObject) plan.get("queryPlanner");
+		DBObject winningPlan = (DBObject) queryPlanner.get("winningPlan");
+
+		List<DBObject> stages = new ArrayList<>();
+		collectStages(winningPlan, stages);
+
+		List<String> names = new ArrayList<>();
+		List<String> indexes = new ArrayList<>();
+		boolean collectionScan = false;
+		boolean inMemorySort = false;
+
+		for (DBObject stage : stages) {
+			String name = String.valueOf(stage.get("stage"));
+			names.add(name);
+			if (name.equals("IXSCAN")) indexes.add(stage.get("indexName") + " " + stage.get("keyPattern"));
+			if (name.equals("COLLSCAN")) collectionScan = true;
+			if (name.equals("SORT")) inMemorySort = true;
+		}
+
+		line(sb, "Plan", StringUtils.join(names, " > "));
+		line(sb, "Index", indexes.isEmpty() ? "none" : StringUtils.join(indexes, ", "));
+		if (collectionScan) line(sb, "Warning", "COLLSCAN (reads the whole collection)");
+		if (inMemorySort) line(sb, "Warning", "SORT in memory (no index gives the order)");
+
+		DBObject stats = (DBObject) plan.get("executionStats");
+		if (stats != null) {
+			examined(sb, stats.get("totalKeysExamined"), stats.get("totalDocsExamined"), stats.get("nReturned"));
+			line(sb, "Time (ms)", stats.get("executionTimeMillis"));
+		}
+	}
+
+	/** Mongo 2.x: cursor is BasicCursor (collection scan) or BtreeCursor with the index name */
+	private static void describeLegacy(StringBuilder sb, DBObject plan) {
+
+		String cursor = String.valueOf(plan.get("cursor"));
+
+		line(sb, "Plan", cursor);
+		line(sb, "Index", cursor.startsWith("BtreeCursor") ? cursor.substring("BtreeCursor".length()).trim() : "none");
+		if (cursor.startsWith("BasicCursor")) line(sb, "Warning", "COLLSCAN (reads the whole collection)");
+		if (Boolean.TRUE.equals(plan.get("scanAndOrder"))) line(sb, "Warning", "SORT in memory (no index gives the order)");
+
+		examined(sb, plan.get("nscanned"), plan.get("nscannedObjects"), plan.get("n"));
+		line(sb, "Time (ms)", plan.get("millis"));
+	}
+
+	private static void examined(StringBuilder sb, Object keys, Object docs, Object returned) {
+
+		line(sb, "Keys examined", keys);
+		line(sb, "Docs examined", docs);
+
+		String ratio = "";
+		if (docs instanceof Number && returned instanceof Number && ((Number) docs).longValue() > 0) {
+			ratio = String.format(" (%.2f per doc examined)",
+					((Number) returned).doubleValue() / ((Number) docs).doubleValue());
+		}
+		line(sb, "Returned", returned + ratio);
+	}
+
+	/** Adds the stage and its input stages (including the plans of each shard) */
+	private static void collectStages(Object stage, List<DBObject> stages) {
+
+		if (stage instanceof List) {
+			for (Object s : (List<?>) stage) collectStages(s, stages);
+			return;
+		}
+		if (!(stage instanceof DBObject)) return;
+
+		DBObject object = (DBObject) stage;
+		if (object.containsField("stage")) stages.add(object);
+
+		collectStages(object.get("inputStage"), stages);
+		collectStages(object.get("inputStages"), stages);
+		collectStages(object.get("shards"), stages);
+		collectStages(object.get("winningPlan"), stages);
+	}
+
+	private static DBObject findCursorStage(DBObject plan) {
+
+		Object stages = plan.get("stages");
+		if (!(stages instanceof List)) return null;
+
+		for (Object stage : (List<?>) stages) {
+			if (stage instanceof DBObject && ((DBObject) stage).containsField("$cursor")) {
+				return (DBObject) ((DBObject) stage).get("$cursor");
+			}
+		}
+		return null;
+	}
+
+	private static void line(StringBuilder sb, String label, Object value) {
+		sb.append(StringUtils.rightPad(label + ":", PADDING)).append(value == null ? "none" : value).append('\n');
+	}
+}
@@ -0,0 +1,97 @@
+package com.fmaylinch.sqlmongo.output;
+
+import com.mongodb.DBObject;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Extracts the value of a field path like house.address.number from documents.
+ * Paths are split once with {@link #compile(String)} so rows only walk the steps.
+ * Numeric steps like items.0.name are array indexes.
+ */
+public abstract class FieldAccessor {
+
+	protected final String path;
+
+	private FieldAccessor(String path) {
+		this.path = path;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/** Returns the value in the path, or null if some field in the path is missing */
+	public abstract Object get(DBObject object);
+
+
+	public static FieldAccessor compile(String path) {
+		return path.indexOf('.') < 0 ? new TopLevel(path) : new Nested(path);
+	}
+
+	public static FieldAccessor[] compile(Collection<String> paths) {
+		return paths.stream().map(FieldAccessor::compile).toArray(FieldAccessor[]::new);
+	}
+
+
+	/** Plain field lookup */
+	private static class TopLevel extends FieldAccessor {
+
+		TopLevel(String path) {
+			super(path);
+		}
+
+		@Override
+		public Object get(DBObject object) {
+			return object.get(path);
+		}
+	}
+
+	/** Path of several steps; a step is either a field name or an array index */
+	private static class Nested extends FieldAccessor {
+
+		private static final int NOT_INDEX = -1;
+
+		private final String[] names;
+		private final int[] indexes;
+
+		Nested(String path) {
+			super(path);
+			names = path.split("\\.");
+			indexes = new int[names.length];
+			for (int i = 0; i < names.length; i++) {
+				indexes[i] = parseIndex(names[i]);
+			}
+		}
+
+		@Override
+		public Object get(DBObject object) {
+
+			Object value = object;
+
+			for (int i = 0; i < names.length; i++) {
+
+				if (value == null) return null;
+
+				if (indexes[i] != NOT_INDEX && value instanceof List) {
+					List<?> list = (List<?>) value;
+					value = indexes[i] < list.size() ? list.get(indexes[i]) : null;
+				} else if (value instanceof DBObject) {
+					value = ((DBObject) value).get(names[i]);
+				} else {
+					throw new IllegalArgumentException("Field path is not right: " + path);
+				}
+			}
+
+			return value;
+		}
+
+		private static int parseIndex(String step) {
+			for (int i = 0; i < step.length(); i++) {
+				if (!Character.isDigit(step.charAt(i))) return NOT_INDEX;
+			}
+			return step.isEmpty() ? NOT_INDEX : Integer.parseInt(step);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.fmaylinch.sqlmongo.output;
+
+import org.bson.BSONObject;
+import org.bson.LazyBSONObject;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Formatters by type of value. The formatter of a type is the last registered one for the type
+ * or one of its supertypes, and it's looked up once per type (so usually once per column).
+ *
+ * By default: dates with a {@link DateFormatter}, whole doubles without decimals (4 instead of 4.0),
+ * documents and arrays as compact JSON, and other values with toString().
+ */
+public class FormatterRegistry {
+
+	private static final ValueFormatter TO_STRING = Object::toString;
+
+	private static class Entry {
+		final Class<?> type;
+		final ValueFormatter formatter;
+
+		Entry(Class<?> type, ValueFormatter formatter) {
+			this.type = type;
+			this.formatter = formatter;
+		}
+	}
+
+	/** Registered formatters, last registered first */
+	private final List<Entry> entries = new ArrayList<>();
+
+	/** Formatter found for each type of value */
+	private final Map<Class<?>, ValueFormatter> resolved = new ConcurrentHashMap<>();
+
+	public FormatterRegistry() {
+		register(ObjectId.class, v -> ((ObjectId) v).toHexString());
+		register(Double.class, v -> formatDouble((Double) v));
+		register(Float.class, v -> formatDouble((Float) v));
+		register(Map.class, new DocumentFormatter());
+		register(BSONObject.class, new DocumentFormatter());
+		register(Collection.class, new DocumentFormatter()); // after BSONObject, as BasicDBList is both
+		register(Date.class, new DateFormatter("yyyy-MM-dd HH:mm:ss"));
+	}
+
+	/** Formats values of the type (or subtypes) with the formatter, instead of the previous one */
+	public synchronized void register(Class<?> type, ValueFormatter formatter) {
+		entries.add(0, new Entry(type, formatter));
+		resolved.clear();
+	}
+
+	public ValueFormatter formatterFor(Class<?> type) {
+		ValueFormatter formatter = resolved.get(type);
+		return formatter != null ? formatter : resolve(type);
+	}
+
+	/** Formats a non-null value */
+	public String format(Object value) {
+		return formatterFor(value.getClass()).format(value);
+	}
+
+	/**
+	 * Finds the formatter and keeps it while holding the same monitor as register(), so a formatter
+	 * found before a register isn't kept after it clears resolved
+	 */
+	private synchronized ValueFormatter resolve(Class<?> type) {
+		ValueFormatter formatter = find(type);
+		resolved.put(type, formatter);
+		return formatter;
+	}
+
+	private ValueFormatter find(Class<?> type) {
+		for (Entry entry : entries) {
+			if (entry.type.isAssignableFrom(type)) return entry.formatter;
+		}
+		return TO_STRING;
+	}
+
+	/** Whole numbers without decimals (when they fit exactly in a long) */
+	private static String formatDouble(double d) {
+		if (d == (long) d && Math.abs(d) < 1e15) {
+			return Long.toString((long) d);
+		}
+		return Double.toString(d);
+	}
+
+
+	/**
+	 * Formats dates with an immutable {@link DateTimeFormatter} (in the default time zone).
+	 * Dates tend to repeat or come in order, so the text of the last second formatted is reused
+	 * (or of the last millisecond, if the pattern has fractions of second).
+	 */
+	public static class DateFormatter implements ValueFormatter {
+
+		private static class Cached {
+			final long key;
+			final String text;
+
+			Cached(long key, String text) {
+				this.key = key;
+				this.text = text;
+			}
+		}
+
+		private final DateTimeFormatter formatter;
+		private final long granularity;
+
+		/** Replaced (not modified) so threads always see a consistent key and text */
+		private volatile Cached last = new Cached(Long.MIN_VALUE, null);
+
+		public DateFormatter(String pattern) {
+			formatter = DateTimeFormatter.ofPattern(pattern).withZone(ZoneId.systemDefault());
+			granularity = pattern.indexOf('S') >= 0 ? 1 : 1000;
+		}
+
+		@Override
+		public String format(Object value) {
+
+			long millis = ((Date) value).getTime();
+			long key = Math.floorDiv(millis, granularity);
+
+			Cached cached = last;
+			if (cached.key != key) {
+				cached = new Cached(key, formatter.format(Instant.ofEpochMilli(millis)));
+				last = cached;
+			}
+			return cached.text;
+		}
+	}
+
+	/** Documents and arrays as compact JSON, e.g. {"address":{"number":1},"tags":["a","b"]} */
+	private class DocumentFormatter implements ValueFormatter {
+
+		@Override
+		public String format(Object value) {
+			StringBuilder sb = new StringBuilder();
+			append(sb, value);
+			return sb.toString();
+		}
+
+		private void append(StringBuilder sb, Object value) {
+
+			if (value == null) {
+				sb.append("null");
+			} else if (value instanceof Collection) {
+				sb.append('[');
+				boolean first = true;
+				for (Object item : (Collection<?>) value) {
+					if (!first) sb.append(',');
+					append(sb, item);
+					first = false;
+				}
+				sb.append(']');
+			} else if (value instanceof Map || value instanceof BSONObject) {
+				sb.append('{');
+				boolean first = true;
+				for (Map.Entry<?, ?> field : fields(value)) {
+					if (!first) sb.append(',');
+					appendString(sb, String.valueOf(field.getKey()));
+					sb.append(':');
+					append(sb, field.getValue());
+					first = false;
+				}
+				sb.append('}');
+			} else if (value instanceof Number || value instanceof Boolean) {
+				sb.append(FormatterRegistry.this.format(value));
+			} else {
+				appendString(sb, FormatterRegistry.this.format(value));
+			}
+		}
+
+		private Collection<? extends Map.Entry<?, ?>> fields(Object document) {
+
+			if (document instanceof Map) return ((Map<?, ?>) document).entrySet();
+			if (document instanceof LazyBSONObject) return ((LazyBSONObject) document).entrySet();
+
+			BSONObject object = (BSONObject) document;
+			List<Map.Entry<?, ?>> fields = new ArrayList<>();
+			for (String key : object.keySet()) {
+				fields.add(new AbstractMap.SimpleEntry<>(key, object.get(key)));
+			}
+			return fields;
+		}
+
+		private void appendString(StringBuilder sb, String s) {
+			sb.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch (c) {
+					case '"': sb.append("\\\""); break;
+					case '\\': sb.append("\\\\"); break;
+					case '\n': sb.append("\\n"); break;
+					case '\r': sb.append("\\r"); break;
+					case '\t': sb.append("\\t"); break;
+					default:
+						if (c < 0x20) {
+							sb.append(String.format("\\u%04x", (int) c));
+						} else {
+							sb.append(c);
+						}
+				}
+			}
+			sb.append('"');
+		}
+	}
+}
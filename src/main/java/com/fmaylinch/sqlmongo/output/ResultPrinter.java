@@ -0,0 +1,322 @@
+package com.fmaylinch.sqlmongo.output;
+
+import com.fmaylinch.sqlmongo.metrics.QueryMetrics;
+import com.fmaylinch.sqlmongo.util.Fun;
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import org.bson.LazyBSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prints the results of a query in one of the output modes: horizontal, vertical or CSV.
+ * Fields are given as a map from alias (printed) to path (extracted from each document).
+ */
+public class ResultPrinter {
+
+	private final FormatterRegistry formatters = new FormatterRegistry();
+	private String nullValue = "";
+	private int padding = 40;
+	/** If greater than 0, padding is calculated from the values of this number of rows */
+	private int autoPaddingRows = 0;
+	private char csvSeparator = ',';
+	private int csvBufferSize = 1 << 20;
+
+	private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+	/** Formatters of the values by type; more can be registered */
+	public FormatterRegistry getFormatters() {
+		return formatters;
+	}
+
+	/** Pattern of {@link java.time.format.DateTimeFormatter} (mostly the same as SimpleDateFormat's) */
+	public void setDateFormat(String pattern) {
+		formatters.register(Date.class, new FormatterRegistry.DateFormatter(pattern));
+	}
+
+	public void setNullValue(String nullValue) {
+		this.nullValue = nullValue;
+	}
+
+	public void setPadding(int padding) {
+		this.padding = padding;
+	}
+
+	/** Instead of the fixed padding, fit the columns to the values of the first rows (0 to disable) */
+	public void setAutoPadding(int rows) {
+		this.autoPaddingRows = rows;
+	}
+
+	public char getCsvSeparator() {
+		return csvSeparator;
+	}
+
+	public void setCsvSeparator(char csvSeparator) {
+		this.csvSeparator = csvSeparator;
+	}
+
+	public int getCsvBufferSize() {
+		return csvBufferSize;
+	}
+
+	public void setCsvBufferSize(int csvBufferSize) {
+		this.csvBufferSize = csvBufferSize;
+	}
+
+
+	// Output modes (they return the number of documents printed)
+
+	/**
+	 * Prints a header and a row per document, with each column padded to a width
+	 * (the fixed padding, or the widest value of the first rows if auto padding is set).
+	 * The writer is flushed but not closed.
+	 */
+	public long printHorizontal(Cursor cursor, Map<String, String> fields, Writer writer) {
+
+		FieldAccessor[] accessors = FieldAccessor.compile(fields.values());
+		String[] header = fields.keySet().toArray(new String[0]);
+
+		TextOutput out = new TextOutput(writer);
+
+		try {
+			if (autoPaddingRows <= 0) {
+
+				int[] widths = new int[header.length];
+				Arrays.fill(widths, padding);
+
+				out.writeRow(header, widths, 0);
+				return MongoUtil.process(cursor, object -> out.writeRow(extractValueArray(object, accessors), widths, 0));
+			}
+
+			List<String[]> firstRows = new ArrayList<>();
+			try {
+				while (firstRows.size() < autoPaddingRows && cursor.hasNext()) {
+					firstRows.add(extractValueArray(cursor.next(), accessors));
+				}
+			} catch (RuntimeException e) {
+				cursor.close();
+				throw e;
+			}
+
+			int[] widths = autoWidths(header, firstRows);
+
+			out.writeRow(header, widths, 1);
+			for (String[] values : firstRows) {
+				out.writeRow(values, widths, 1);
+			}
+			return firstRows.size() +
+					MongoUtil.process(cursor, object -> out.writeRow(extractValueArray(object, accessors), widths, 1));
+
+		} finally {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Prints each field in its own line followed by an empty line.
+	 * If fields is empty, all fields of each document are printed. The writer is flushed but not closed.
+	 */
+	public long printVertical(Cursor cursor, Map<String, String> fields, Writer writer) {
+
+		FieldAccessor[] accessors = FieldAccessor.compile(fields.values());
+		String[] labels = Fun.map(fields.keySet(), f -> f + ":").toArray(new String[0]);
+		int labelWidth = autoPaddingRows > 0 ? maxLength(labels) + 1 : padding;
+
+		TextOutput out = new TextOutput(writer);
+
+		try {
+			return MongoUtil.process(cursor, object -> {
+
+				if (!fields.isEmpty()) {
+					out.writeFields(labels, extractValueArray(object, accessors), labelWidth);
+				} else if (object instanceof LazyBSONObject) {
+					// Looking for each field would scan the document from the start every time
+					List<Map.Entry<String, Object>> entries = new ArrayList<>(((LazyBSONObject) object).entrySet());
+					writeAllFields(out, Fun.map(entries, Map.Entry::getKey), Fun.map(entries, Map.Entry::getValue));
+				} else {
+					Collection<String> keys = object.keySet();
+					writeAllFields(out, keys, Fun.map(keys, object::get));
+				}
+			});
+		} finally {
+			out.flush();
+		}
+	}
+
+	private void writeAllFields(TextOutput out, Collection<String> keys, List<Object> values) {
+
+		String[] labels = new String[keys.size()];
+		String[] strings = new String[keys.size()];
+
+		int i = 0;
+		for (String key : keys) {
+			labels[i] = key + ":";
+			strings[i] = valueToString(values.get(i));
+			i++;
+		}
+
+		out.writeFields(labels, strings, autoPaddingRows > 0 ? maxLength(labels) + 1 : padding);
+	}
+
+	/** Width of each column: the longest of the header and the values plus 2 spaces, except the last one */
+	private static int[] autoWidths(String[] header, List<String[]> rows) {
+
+		int[] widths = new int[header.length];
+
+		for (int i = 0; i < header.length - 1; i++) {
+			widths[i] = header[i].length();
+			for (String[] values : rows) {
+				widths[i] = Math.max(widths[i], values[i].length());
+			}
+			widths[i] += 2;
+		}
+
+		return widths;
+	}
+
+	private static int maxLength(String[] strings) {
+		int max = 0;
+		for (String s : strings) {
+			max = Math.max(max, s.length());
+		}
+		return max;
+	}
+
+	/**
+	 * Writes lines through one buffer, building each one in the same StringBuilder.
+	 * Writes to the writer are recorded in {@link QueryMetrics} (counting characters as bytes).
+	 */
+	private static class TextOutput {
+
+		private static final String NEW_LINE = System.lineSeparator();
+
+		private final Writer writer;
+		private final StringBuilder line = new StringBuilder(256);
+		private char[] buffer = new char[OUTPUT_BUFFER_SIZE];
+		private int position;
+
+		TextOutput(Writer writer) {
+			this.writer = writer;
+		}
+
+		/** Pads values to their width, leaving at least minGap spaces if they don't fit */
+		void writeRow(String[] values, int[] widths, int minGap) {
+
+			line.setLength(0);
+			for (int i = 0; i < values.length; i++) {
+				appendPadded(values[i], widths[i], i < values.length - 1 ? minGap : 0);
+			}
+			line.append(NEW_LINE);
+			write();
+		}
+
+		/** Writes a line per label and value (with the label padded to the width) and an empty line */
+		void writeFields(String[] labels, String[] values, int labelWidth) {
+
+			line.setLength(0);
+			for (int i = 0; i < labels.length; i++) {
+				if (i > 0) line.append('\n');
+				appendPadded(labels[i], labelWidth, 0);
+				line.append(values[i]);
+			}
+			line.append(NEW_LINE).append(NEW_LINE);
+			write();
+		}
+
+		private void appendPadded(String value, int width, int minGap) {
+			line.append(value);
+			for (int spaces = Math.max(width - value.length(), minGap); spaces > 0; spaces--) {
+				line.append(' ');
+			}
+		}
+
+		private void write() {
+			if (position + line.length() > buffer.length) {
+				writeBuffer(false);
+				if (line.length() > buffer.length) {
+					buffer = new char[line.length()];
+				}
+			}
+			line.getChars(0, line.length(), buffer, position);
+			position += line.length();
+		}
+
+		void flush() {
+			writeBuffer(true);
+		}
+
+		private void writeBuffer(boolean flush) {
+			try {
+				long start = System.nanoTime();
+				writer.write(buffer, 0, position);
+				if (flush) writer.flush();
+				QueryMetrics.INSTANCE.addWrite(position, System.nanoTime() - start);
+				position = 0;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/** Writes the header and rows as CSV to the channel, and closes it */
+	public long printCsv(Cursor cursor, Map<String, String> fields, WritableByteChannel channel) throws IOException {
+
+		FieldAccessor[] accessors = FieldAccessor.compile(fields.values());
+
+		try (CsvWriter writer = new CsvWriter(channel, csvSeparator, csvBufferSize)) {
+
+			writer.writeRow(fields.keySet()); // header
+
+			return MongoUtil.process(cursor, object -> writeCsvRow(writer, accessors, object));
+		}
+	}
+
+	public void writeCsvRow(CsvWriter writer, FieldAccessor[] accessors, DBObject object) {
+
+		for (FieldAccessor accessor : accessors) {
+			writer.writeValue(extractValue(object, accessor));
+		}
+		writer.endRow();
+	}
+
+
+	// Values
+
+	public List<String> extractValues(DBObject object, FieldAccessor[] accessors) {
+
+		List<String> values = new ArrayList<>(accessors.length);
+		for (FieldAccessor accessor : accessors) {
+			values.add(extractValue(object, accessor));
+		}
+		return values;
+	}
+
+	public String[] extractValueArray(DBObject object, FieldAccessor[] accessors) {
+
+		String[] values = new String[accessors.length];
+		for (int i = 0; i < accessors.length; i++) {
+			values[i] = extractValue(object, accessors[i]);
+		}
+		return values;
+	}
+
+	public String extractValue(DBObject object, FieldAccessor accessor) {
+		return valueToString(accessor.get(object));
+	}
+
+	public String valueToString(Object value) {
+		if (value == null) return nullValue;
+		if (value instanceof String) return (String) value;
+		return formatters.format(value);
+	}
+}
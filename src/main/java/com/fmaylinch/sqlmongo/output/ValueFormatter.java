@@ -0,0 +1,10 @@
+package com.fmaylinch.sqlmongo.output;
+
+/**
+ * Formats non-null values of some type for the output (see {@link FormatterRegistry}).
+ * Formatters may be used by several threads at the same time.
+ */
+public interface ValueFormatter {
+
+	String format(Object value);
+}
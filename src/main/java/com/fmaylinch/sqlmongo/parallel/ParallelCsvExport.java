@@ -0,0 +1,228 @@
+package com.fmaylinch.sqlmongo.parallel;
+
+import com.fmaylinch.sqlmongo.output.CsvWriter;
+import com.fmaylinch.sqlmongo.parser.QueryHints;
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBDecoder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Exports to CSV the results of several range queries (see {@link RangePartitioner}),
+ * each one with its own cursor in a pool of threads.
+ */
+public class ParallelCsvExport {
+
+	public enum Output {
+		/** One CSV file per range, each one with its header */
+		PARTS,
+		/** One CSV file with the ranges in order (they are written to temporary files and then concatenated) */
+		ORDERED,
+		/** One CSV file where rows are written as they come */
+		UNORDERED
+	}
+
+	/** Writes the values of a document as a CSV row */
+	public interface RowWriter {
+		void write(CsvWriter writer, DBObject object);
+	}
+
+	private final DBCollection collection;
+	private final DBObject projection;
+	private final DBObject orders;
+	private final Collection<String> header;
+	private final RowWriter rowWriter;
+
+	private char separator = ',';
+	private int bufferSize = 1 << 20;
+	private boolean lazyDecoding = false;
+	private QueryHints hints = new QueryHints();
+
+	public ParallelCsvExport(DBCollection collection, DBObject projection, DBObject orders,
+							 Collection<String> header, RowWriter rowWriter) {
+		this.collection = collection;
+		this.projection = projection;
+		this.orders = orders;
+		this.header = header;
+		this.rowWriter = rowWriter;
+	}
+
+	public void setSeparator(char separator) {
+		this.separator = separator;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/** See {@link com.fmaylinch.sqlmongo.parser.QueryOptions#lazyDecoding} */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	/** Hints applied to the cursors (e.g. batch size or read preference) */
+	public void setHints(QueryHints hints) {
+		this.hints = hints;
+	}
+
+	/**
+	 * Runs each query in its own thread, writing the results to the csv file as specified by output.
+	 * @return rows written
+	 */
+	public long export(List<DBObject> queries, String csvFile, Output output) throws IOException
+	{
+		AtomicLong rows = new AtomicLong();
+
+		switch (output) {
+
+			case PARTS:
+				runAll(queries, i -> {
+					try (CsvWriter writer = CsvWriter.open(partFile(csvFile, i), separator, bufferSize)) {
+						writer.writeRow(header);
+						rows.addAndGet(write(queries.get(i), writer));
+					}
+				});
+				break;
+
+			case ORDERED:
+				try {
+					runAll(queries, i -> {
+						try (CsvWriter writer = CsvWriter.open(tempFile(csvFile, i), separator, bufferSize)) {
+							rows.addAndGet(write(queries.get(i), writer));
+						}
+					});
+					concatenate(csvFile, queries.size());
+				} finally {
+					for (int i = 0; i < queries.size(); i++) {
+						Files.deleteIfExists(Paths.get(tempFile(csvFile, i)));
+					}
+				}
+				break;
+
+			case UNORDERED:
+				try (FileChannel channel = FileChannel.open(Paths.get(csvFile), CREATE, WRITE, TRUNCATE_EXISTING)) {
+					writeHeader(channel);
+					runAll(queries, i -> {
+						try (CsvWriter writer = CsvWriter.shared(channel, separator, bufferSize)) {
+							rows.addAndGet(write(queries.get(i), writer));
+						}
+					});
+				}
+				break;
+		}
+
+		return rows.get();
+	}
+
+	/** Name of part file number i, e.g. coupons-part-1.csv for coupons.csv */
+	public static String partFile(String csvFile, int i) {
+		int dot = csvFile.lastIndexOf('.');
+		int slash = csvFile.lastIndexOf('/');
+		return dot > slash + 1
+				? csvFile.substring(0, dot) + "-part-" + i + csvFile.substring(dot)
+				: csvFile + "-part-" + i;
+	}
+
+	private static String tempFile(String csvFile, int i) {
+		return csvFile + ".part" + i;
+	}
+
+	private long write(DBObject query, CsvWriter writer) {
+
+		DBCursor cursor = collection.find(query, projection);
+		if (orders != null) cursor.sort(orders);
+		if (lazyDecoding) cursor.setDecoderFactory(LazyDBDecoder.FACTORY);
+		hints.apply(cursor);
+
+		long[] rows = {0};
+		MongoUtil.process(cursor, object -> {
+			rowWriter.write(writer, object);
+			rows[0]++;
+		});
+		return rows[0];
+	}
+
+	private void writeHeader(FileChannel channel) throws IOException {
+		try (CsvWriter writer = CsvWriter.shared(channel, separator, bufferSize)) {
+			writer.writeRow(header);
+		}
+	}
+
+	/** Writes the header and then appends the temporary files in order */
+	private void concatenate(String csvFile, int parts) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(csvFile), CREATE, WRITE, TRUNCATE_EXISTING)) {
+
+			writeHeader(channel);
+
+			for (int i = 0; i < parts; i++) {
+				Path part = Paths.get(tempFile(csvFile, i));
+				try (FileChannel partChannel = FileChannel.open(part, READ)) {
+					long size = partChannel.size();
+					long position = 0;
+					while (position < size) {
+						position += partChannel.transferTo(position, size - position, channel);
+					}
+				}
+			}
+		}
+	}
+
+
+	// Threads
+
+	private interface Task {
+		void run(int i) throws IOException;
+	}
+
+	/** Runs task(i) for each query in the pool and waits for all; the first failure cancels the rest */
+	private void runAll(List<DBObject> queries, Task task) throws IOException {
+
+		ExecutorService pool = Executors.newFixedThreadPool(queries.size());
+
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < queries.size(); i++) {
+				final int index = i;
+				futures.add(pool.submit(() -> {
+					task.run(index);
+					return null;
+				}));
+			}
+
+			for (Future<?> future : futures) {
+				future.get();
+			}
+
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
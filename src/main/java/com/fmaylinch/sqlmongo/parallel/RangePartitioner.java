@@ -0,0 +1,190 @@
+package com.fmaylinch.sqlmongo.parallel;
+
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Splits the documents matched by a query into disjoint ranges of a field.
+ *
+ * Split points are interpolated between the min and max values when the field is an
+ * ObjectId, a number or a date. Otherwise (or if {@link Split#SAMPLE} is chosen) they are
+ * taken from a random sample of the field, which also copes with skewed values.
+ *
+ * The field should be indexed, present in all documents and hold values of a single type
+ * (documents without the field are not matched by any range).
+ */
+public class RangePartitioner {
+
+	public enum Split { INTERPOLATE, SAMPLE }
+
+	/** Sampled values per range when using {@link Split#SAMPLE} */
+	private static final int SAMPLES_PER_RANGE = 20;
+
+	private final DBCollection collection;
+	private final DBObject query;
+	private final String field;
+
+	public RangePartitioner(DBCollection collection, DBObject query, String field) {
+		this.collection = collection;
+		this.query = query;
+		this.field = field;
+	}
+
+	/**
+	 * Returns up to {@code parts} queries, each one being the original query restricted to a range of the field.
+	 * The first range has no lower bound and the last one has no upper bound.
+	 * There may be less ranges than requested (e.g. if there are few distinct values).
+	 */
+	public List<DBObject> split(int parts, Split split) {
+
+		Object min = findLimit(1);
+		Object max = findLimit(-1);
+
+		if (min == null || max == null || parts <= 1) {
+			return Arrays.asList(query); // nothing to split
+		}
+
+		List<Object> points = split == Split.INTERPOLATE && isInterpolable(min, max)
+				? interpolate(min, max, parts)
+				: sample(parts);
+
+		List<DBObject> ranges = new ArrayList<>();
+
+		Object lower = null;
+		for (Object point : points) {
+			if (lower != null && compare(lower, point) >= 0) continue; // skip repeated points
+			ranges.add(restrict(range(lower, point)));
+			lower = point;
+		}
+		ranges.add(restrict(range(lower, null)));
+
+		return ranges;
+	}
+
+	/** Min (direction 1) or max (direction -1) value of the field */
+	private Object findLimit(int direction) {
+
+		DBCursor cursor = collection.find(withField(), MongoUtil.obj(field, 1))
+				.sort(MongoUtil.obj(field, direction))
+				.limit(1);
+
+		try {
+			return cursor.hasNext() ? cursor.next().get(field) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/** Returns {@code parts-1} split points evenly distributed between min and max */
+	private List<Object> interpolate(Object min, Object max, int parts) {
+
+		double from = toDouble(min);
+		double to = toDouble(max);
+
+		List<Object> points = new ArrayList<>();
+
+		for (int i = 1; i < parts; i++) {
+			double point = from + (to - from) * i / parts;
+			points.add(fromDouble(point, min));
+		}
+
+		return points;
+	}
+
+	/** Returns {@code parts-1} split points taken from the quantiles of a random sample */
+	private List<Object> sample(int parts) {
+
+		List<DBObject> pipeline = Arrays.asList(
+				MongoUtil.obj("$match", withField()),
+				MongoUtil.obj("$sample", MongoUtil.obj("size", parts * SAMPLES_PER_RANGE)),
+				MongoUtil.obj("$project", MongoUtil.obj(field, 1)),
+				MongoUtil.obj("$sort", MongoUtil.obj(field, 1)));
+
+		List<Object> values = new ArrayList<>();
+		MongoUtil.process(collection.aggregate(pipeline, AggregationOptions.builder()
+				.outputMode(AggregationOptions.OutputMode.CURSOR).allowDiskUse(true).build()),
+				object -> values.add(object.get(field)));
+
+		List<Object> points = new ArrayList<>();
+
+		for (int i = 1; i < parts && !values.isEmpty(); i++) {
+			points.add(values.get(i * values.size() / parts));
+		}
+
+		return points;
+	}
+
+	/**
+	 * The query restricted to documents with a non-null value of the field: the others sort first,
+	 * so they would be taken as the min value or the lowest split points, and a null bound means no bound.
+	 */
+	private DBObject withField() {
+		return restrict(MongoUtil.obj(QueryOperators.NE, null));
+	}
+
+	/** Range condition for the field; bounds may be null */
+	private DBObject range(Object lower, Object upper) {
+
+		BasicDBObject range = MongoUtil.obj();
+		if (lower != null) range.append(QueryOperators.GTE, lower);
+		if (upper != null) range.append(QueryOperators.LT, upper);
+		return range;
+	}
+
+	/** Adds the range to the query */
+	private DBObject restrict(DBObject range) {
+
+		if (range.keySet().isEmpty()) return query;
+
+		if (!query.containsField(field)) {
+			BasicDBObject result = new BasicDBObject(query.toMap());
+			return result.append(field, range);
+		}
+
+		return MongoUtil.obj(QueryOperators.AND, Arrays.asList(query, MongoUtil.obj(field, range)));
+	}
+
+
+	// Value conversion
+
+	private static boolean isInterpolable(Object min, Object max) {
+		return min.getClass() == max.getClass()
+				&& (min instanceof ObjectId || min instanceof Number || min instanceof Date);
+	}
+
+	private static double toDouble(Object value) {
+		if (value instanceof ObjectId) return ((ObjectId) value).getTimestamp();
+		if (value instanceof Date) return ((Date) value).getTime();
+		return ((Number) value).doubleValue();
+	}
+
+	private static Object fromDouble(double value, Object sample) {
+		// ObjectId of the seconds with zero machine and counter bytes, so it's the lowest one of that second
+		if (sample instanceof ObjectId) return new ObjectId(ByteBuffer.allocate(12).putInt((int) (long) value).array());
+		if (sample instanceof Date) return new Date((long) value);
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compare(Object a, Object b) {
+		if (a instanceof Number && b instanceof Number) {
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		if (a instanceof Comparable && a.getClass() == b.getClass()) {
+			return ((Comparable<Object>) a).compareTo(b);
+		}
+		return -1; // can't tell, so keep both points
+	}
+}
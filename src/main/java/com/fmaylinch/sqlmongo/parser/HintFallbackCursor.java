@@ -0,0 +1,70 @@
+package com.fmaylinch.sqlmongo.parser;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+
+import java.util.function.Supplier;
+
+/**
+ * Cursor of a query with an index hinted by {@link IndexPlanner} that, if the server fails because the index
+ * doesn't exist anymore (it was dropped after the indexes were cached), is replaced by the one given by the fallback
+ * (the query without the hint). The server fails before returning the first batch, so it's only checked then.
+ */
+public class HintFallbackCursor implements Cursor {
+
+	private Cursor cursor;
+	private Supplier<Cursor> fallback;
+
+	public HintFallbackCursor(Cursor cursor, Supplier<Cursor> fallback) {
+		this.cursor = cursor;
+		this.fallback = fallback;
+	}
+
+	/** If the error is the one the server gives when the hinted index doesn't exist */
+	public static boolean isBadHintError(MongoException e) {
+		String message = String.valueOf(e.getMessage());
+		return message.contains("bad hint") || message.contains("hint provided does not correspond to an existing index");
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		if (fallback == null) return cursor.hasNext();
+
+		try {
+			boolean result = cursor.hasNext();
+			fallback = null;
+			return result;
+		} catch (MongoException e) {
+			if (!isBadHintError(e)) throw e;
+			cursor.close();
+			System.err.println("Warning: the index hinted to cover the query doesn't exist anymore, so it's run without hint");
+			cursor = fallback.get();
+			fallback = null;
+			return cursor.hasNext();
+		}
+	}
+
+	@Override
+	public DBObject next() {
+		if (fallback != null) hasNext(); // the first call may fall back
+		return cursor.next();
+	}
+
+	@Override
+	public long getCursorId() {
+		return cursor.getCursorId();
+	}
+
+	@Override
+	public ServerAddress getServerAddress() {
+		return cursor.getServerAddress();
+	}
+
+	@Override
+	public void close() {
+		cursor.close();
+	}
+}
@@ -0,0 +1,192 @@
+package com.fmaylinch.sqlmongo.parser;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds an index that covers a find query: one that contains all fields of the filter, sort and projection,
+ * so mongo can answer from the index without fetching documents. The index must also start with a field
+ * the filter compares by equality or range, or with the first sort field; otherwise hinting it would make
+ * mongo scan the whole index (e.g. {email: 1, userId: 1} for userId = 5).
+ *
+ * Indexes of each collection are loaded with getIndexInfo() and cached for a minute (see {@link #clearCache()}).
+ * Only plain ascending/descending indexes without sparse or partial filter are considered,
+ * as hinting those could leave out documents. Paths with dots are never considered covered,
+ * as the index could be multikey.
+ */
+public class IndexPlanner {
+
+	private static final String ID = "_id";
+
+	/** Operators that give index bounds for the field */
+	private static final Set<String> BOUND_OPERATORS = new HashSet<>(Arrays.asList("$eq", "$gt", "$gte", "$lt", "$lte", "$in"));
+
+	/** Time the indexes of a collection are cached, so indexes created or dropped are seen by long running processes */
+	private static final long CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static class CachedIndexes {
+		final List<DBObject> indexes;
+		final long loadedAt = System.currentTimeMillis();
+
+		CachedIndexes(List<DBObject> indexes) {
+			this.indexes = indexes;
+		}
+	}
+
+	/** Indexes by server and collection name */
+	private static final Map<String, CachedIndexes> indexCache = new ConcurrentHashMap<>();
+
+	public static List<DBObject> getIndexes(DBCollection collection) {
+
+		String key = collection.getDB().getMongo().getConnectPoint() + "/" + collection.getFullName();
+
+		CachedIndexes cached = indexCache.get(key);
+		if (cached == null || System.currentTimeMillis() - cached.loadedAt > CACHE_TTL_MILLIS) {
+			cached = new CachedIndexes(collection.getIndexInfo());
+			indexCache.put(key, cached);
+		}
+		return cached.indexes;
+	}
+
+	/** Forgets the cached indexes, e.g. after creating an index or when a hinted one doesn't exist anymore */
+	public static void clearCache() {
+		indexCache.clear();
+	}
+
+	/**
+	 * Returns the key pattern of the smallest index that covers the query, or null if there's none
+	 * (or the projection includes all fields).
+	 */
+	public static DBObject findCoveringIndex(DBCollection collection, DBObject query, DBObject projection,
+											 DBObject orders)
+	{
+		if (projection == null || projection.keySet().isEmpty()) return null;
+
+		Set<String> fields = new HashSet<>();
+
+		for (String field : projection.keySet()) {
+			if (!isExcluded(projection.get(field))) fields.add(field);
+		}
+		if (!isExcluded(projection.get(ID))) {
+			fields.add(ID); // included by default
+		}
+
+		addQueryFields(query, fields);
+
+		if (orders != null) {
+			fields.addAll(orders.keySet());
+		}
+
+		if (fields.stream().anyMatch(f -> f.indexOf('.') >= 0)) return null;
+
+		Set<String> leadingFields = new HashSet<>();
+		addBoundFields(query, leadingFields);
+		if (orders != null && !orders.keySet().isEmpty()) {
+			leadingFields.add(orders.keySet().iterator().next());
+		}
+
+		DBObject best = null;
+
+		for (DBObject index : getIndexes(collection)) {
+			DBObject keys = (DBObject) index.get("key");
+			if (isPlain(index) && keys.keySet().containsAll(fields)
+					&& leadingFields.contains(keys.keySet().iterator().next())
+					&& (best == null || keys.keySet().size() < best.keySet().size())) {
+				best = keys;
+			}
+		}
+
+		return best;
+	}
+
+	/** Fields compared by equality or range in the query or its $and (not in $or or $nor, which may not apply) */
+	private static void addBoundFields(Object query, Set<String> fields) {
+
+		if (!(query instanceof DBObject)) return;
+
+		DBObject object = (DBObject) query;
+		for (String key : object.keySet()) {
+			Object value = object.get(key);
+			if (key.equals("$and") && value instanceof List) {
+				for (Object item : (List<?>) value) addBoundFields(item, fields);
+			} else if (!key.startsWith("$") && isBound(value)) {
+				fields.add(key);
+			}
+		}
+	}
+
+	/** If the condition is an equality (a value) or has some range or $in operator */
+	private static boolean isBound(Object condition) {
+
+		if (!(condition instanceof DBObject) || condition instanceof List) return true;
+
+		DBObject operators = (DBObject) condition;
+		if (operators.keySet().stream().noneMatch(k -> k.startsWith("$"))) return true; // equal to a subdocument
+
+		return operators.keySet().stream().anyMatch(BOUND_OPERATORS::contains);
+	}
+
+	/** If the field has a unique value per document: it's _id or it has a unique single field index */
+	public static boolean isUniqueKey(DBCollection collection, String field) {
+
+		if (field.equals(ID)) return true;
+
+		for (DBObject index : getIndexes(collection)) {
+			DBObject keys = (DBObject) index.get("key");
+			if (Boolean.TRUE.equals(index.get("unique")) && keys.keySet().size() == 1 && keys.containsField(field)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Field names of the query, including the ones inside $and, $or and $nor */
+	private static void addQueryFields(Object query, Set<String> fields) {
+
+		if (query instanceof List) {
+			for (Object item : (List<?>) query) addQueryFields(item, fields);
+			return;
+		}
+
+		if (!(query instanceof DBObject)) return;
+
+		DBObject object = (DBObject) query;
+		for (String key : object.keySet()) {
+			if (key.startsWith("$")) {
+				addQueryFields(object.get(key), fields);
+			} else {
+				fields.add(key);
+			}
+		}
+	}
+
+	private static boolean isExcluded(Object projectionValue) {
+		return projectionValue instanceof Number && ((Number) projectionValue).intValue() == 0
+				|| Boolean.FALSE.equals(projectionValue);
+	}
+
+	/** Ascending/descending keys only (no text, 2d, hashed...), not sparse and without partial filter */
+	private static boolean isPlain(DBObject index) {
+
+		Object sparse = index.get("sparse");
+		boolean isSparse = Boolean.TRUE.equals(sparse) || sparse instanceof Number && ((Number) sparse).intValue() != 0;
+
+		if (isSparse || index.containsField("partialFilterExpression")) {
+			return false;
+		}
+
+		DBObject keys = (DBObject) index.get("key");
+		for (String key : keys.keySet()) {
+			if (!(keys.get(key) instanceof Number)) return false;
+		}
+		return true;
+	}
+}
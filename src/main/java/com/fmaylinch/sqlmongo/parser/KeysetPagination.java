@@ -0,0 +1,162 @@
+package com.fmaylinch.sqlmongo.parser;
+
+import com.fmaylinch.sqlmongo.output.FieldAccessor;
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+import com.mongodb.ServerAddress;
+import com.mongodb.util.JSON;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Pages through find queries by seeking after the sort key of the last row of the previous page,
+ * instead of skipping documents (the server would walk all the skipped ones).
+ *
+ * This is possible when the order by fields end with a unique key (_id or a field with a unique index),
+ * so the sort key identifies one document. Page tokens are the values of that sort key encoded as
+ * base64 of their extended JSON. Documents without some of the sort fields may be missed.
+ */
+public class KeysetPagination {
+
+	/** Order by fields, up to the unique key */
+	private final BasicDBObject orders;
+	private final FieldAccessor[] accessors;
+
+	private KeysetPagination(BasicDBObject orders) {
+		this.orders = orders;
+		this.accessors = FieldAccessor.compile(orders.keySet());
+	}
+
+	/** Returns the pagination for the order by fields, or null if they don't end with a unique key */
+	public static KeysetPagination forOrders(DBCollection collection, BasicDBObject orders) {
+
+		if (orders == null) return null;
+
+		BasicDBObject keys = MongoUtil.obj();
+		for (String field : orders.keySet()) {
+			keys.append(field, orders.get(field));
+			if (IndexPlanner.isUniqueKey(collection, field)) {
+				return new KeysetPagination(keys);
+			}
+		}
+		return null;
+	}
+
+	/** Order by fields, so they can be included in the projection */
+	public List<String> getFields() {
+		return new ArrayList<>(orders.keySet());
+	}
+
+	/**
+	 * Condition for the rows after the given sort key; for orders a, b it's
+	 * a &gt; va or (a = va and b &gt; vb), with &lt; for descending fields.
+	 */
+	public DBObject after(List<Object> values) {
+
+		List<String> fields = getFields();
+
+		if (values.size() != fields.size()) {
+			throw new IllegalArgumentException("The page token doesn't match the order by fields " + fields);
+		}
+
+		BasicDBList or = new BasicDBList();
+
+		for (int i = 0; i < fields.size(); i++) {
+			BasicDBObject condition = MongoUtil.obj();
+			for (int j = 0; j < i; j++) {
+				condition.append(fields.get(j), values.get(j));
+			}
+			String operator = ((Number) orders.get(fields.get(i))).intValue() < 0 ? QueryOperators.LT : QueryOperators.GT;
+			condition.append(fields.get(i), MongoUtil.obj(operator, values.get(i)));
+			or.add(condition);
+		}
+
+		return or.size() == 1 ? (DBObject) or.get(0) : MongoUtil.obj(QueryOperators.OR, or);
+	}
+
+	/** Adds the condition to the query */
+	public static DBObject and(DBObject query, DBObject condition) {
+		if (query.keySet().isEmpty()) return condition;
+		return MongoUtil.obj(QueryOperators.AND, Arrays.asList(query, condition));
+	}
+
+	/** Sort key of the document */
+	public List<Object> sortKey(DBObject object) {
+		List<Object> values = new ArrayList<>(accessors.length);
+		for (FieldAccessor accessor : accessors) {
+			values.add(accessor.get(object));
+		}
+		return values;
+	}
+
+
+	// Tokens
+
+	public static String encodeToken(List<Object> values) {
+		BasicDBList list = new BasicDBList();
+		list.addAll(values);
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(JSON.serialize(list).getBytes(StandardCharsets.UTF_8));
+	}
+
+	@SuppressWarnings("unchecked")
+	public static List<Object> decodeToken(String token) {
+		try {
+			String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+			return (List<Object>) JSON.parse(json);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid page token: " + token);
+		}
+	}
+
+
+	/** Remembers the last document read, to give the token of the next page */
+	public class PageCursor implements Cursor {
+
+		private final Cursor cursor;
+		private DBObject last;
+
+		public PageCursor(Cursor cursor) {
+			this.cursor = cursor;
+		}
+
+		/** Token to get the rows after the last one read, or null if none was read */
+		public String nextPageToken() {
+			return last == null ? null : encodeToken(sortKey(last));
+		}
+
+		@Override
+		public boolean hasNext() {
+			return cursor.hasNext();
+		}
+
+		@Override
+		public DBObject next() {
+			return last = cursor.next();
+		}
+
+		@Override
+		public long getCursorId() {
+			return cursor.getCursorId();
+		}
+
+		@Override
+		public ServerAddress getServerAddress() {
+			return cursor.getServerAddress();
+		}
+
+		@Override
+		public void close() {
+			cursor.close();
+		}
+	}
+}
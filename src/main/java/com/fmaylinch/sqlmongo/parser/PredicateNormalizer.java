@@ -0,0 +1,386 @@
+package com.fmaylinch.sqlmongo.parser;
+
+import com.fmaylinch.sqlmongo.util.BsonComparator;
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites a query so each field has its conditions in one document with the tightest bounds
+ * (e.g. price &gt; 10 and price &gt; 20 and price &lt; 50 is {price: {$gt: 20, $lt: 50}}),
+ * equalities joined by or are $in and inequalities joined by and are $nin.
+ * It also detects queries that can never match, so they don't need to be sent.
+ *
+ * Fields may be arrays, where each condition may be matched by a different element
+ * (e.g. tags = 'a' and tags = 'b', or price &lt; 10 and price &gt; 20), so those conditions are kept.
+ * If fields are known to hold single values, they are also treated as contradictions
+ * (see {@link QueryOptions#scalarFields}).
+ *
+ * Only conditions whose values are numbers, strings, dates, ObjectIds or booleans of a single type
+ * per field are combined; the rest (e.g. regexes) are kept as they are.
+ */
+public class PredicateNormalizer {
+
+	private static final Set<String> FOLDED_OPERATORS = new HashSet<>(Arrays.asList(
+			QueryOperators.GT, QueryOperators.GTE, QueryOperators.LT, QueryOperators.LTE,
+			QueryOperators.NE, QueryOperators.IN, QueryOperators.NIN));
+
+	private final boolean scalarFields;
+
+	public PredicateNormalizer(boolean scalarFields) {
+		this.scalarFields = scalarFields;
+	}
+
+	/** Returns the normalized query, or null if it can never match */
+	public BasicDBObject normalize(DBObject query) {
+
+		Map<String, FieldConditions> fields = new LinkedHashMap<>();
+		List<DBObject> others = new ArrayList<>(); // $or that remain and other operators
+
+		if (!addConjunction(query, fields, others)) return null;
+
+		List<DBObject> conditions = new ArrayList<>();
+		for (FieldConditions field : fields.values()) {
+			if (!field.build(conditions)) return null;
+		}
+		conditions.addAll(others);
+
+		return and(conditions);
+	}
+
+	/** Adds the conditions of the query, including the ones in $and and the $or that become simpler */
+	private boolean addConjunction(DBObject query, Map<String, FieldConditions> fields, List<DBObject> others) {
+
+		for (String key : query.keySet()) {
+
+			Object value = query.get(key);
+
+			if (key.equals(QueryOperators.AND)) {
+				for (Object item : (List<?>) value) {
+					if (!addConjunction((DBObject) item, fields, others)) return false;
+				}
+			} else if (key.equals(QueryOperators.OR)) {
+				DBObject or = normalizeOr((List<?>) value);
+				if (or == null) return false;
+				if (or.containsField(QueryOperators.OR)) {
+					others.add(or);
+				} else if (!addConjunction(or, fields, others)) {
+					return false;
+				}
+			} else if (key.startsWith("$")) {
+				others.add(MongoUtil.obj(key, value));
+			} else {
+				fields.computeIfAbsent(key, FieldConditions::new).add(value);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Normalizes each branch, removing the ones that never match (null if none is left).
+	 * Branches with equalities on the same field become $in.
+	 */
+	private DBObject normalizeOr(List<?> branches) {
+
+		List<BasicDBObject> normalized = new ArrayList<>();
+		for (Object branch : branches) {
+			BasicDBObject condition = normalize((DBObject) branch);
+			if (condition != null) normalized.add(condition);
+		}
+
+		if (normalized.isEmpty()) return null;
+		if (normalized.size() == 1) return normalized.get(0);
+
+		String path = null;
+		List<Object> values = new ArrayList<>();
+
+		for (BasicDBObject condition : normalized) {
+
+			if (condition.keySet().size() != 1) return MongoUtil.obj(QueryOperators.OR, normalized);
+
+			String key = condition.keySet().iterator().next();
+			Object value = condition.get(key);
+
+			if (key.startsWith("$") || path != null && !path.equals(key)) return MongoUtil.obj(QueryOperators.OR, normalized);
+			path = key;
+
+			if (isFoldable(value)) {
+				addDistinct(values, value);
+			} else if (value instanceof DBObject && ((DBObject) value).keySet().equals(singleton(QueryOperators.IN))
+					&& areFoldable(((DBObject) value).get(QueryOperators.IN))) {
+				for (Object item : (List<?>) ((DBObject) value).get(QueryOperators.IN)) addDistinct(values, item);
+			} else {
+				return MongoUtil.obj(QueryOperators.OR, normalized);
+			}
+		}
+
+		return MongoUtil.obj(path, values.size() == 1 ? values.get(0) : MongoUtil.obj(QueryOperators.IN, list(values)));
+	}
+
+
+	/** Conditions of one field */
+	private class FieldConditions {
+
+		final String path;
+
+		final List<Object> equals = new ArrayList<>();
+		/** Strongest bounds (null if none) and whether they include the value */
+		Object lower;
+		boolean lowerInclusive;
+		Object upper;
+		boolean upperInclusive;
+		final List<List<Object>> ins = new ArrayList<>();
+		final List<Object> notIns = new ArrayList<>();
+		/** Conditions that are not combined */
+		final List<Object> kept = new ArrayList<>();
+
+		/** Values found, to combine only conditions over one type */
+		final List<Object> values = new ArrayList<>();
+		/** All conditions as given, used if they have values of several types */
+		final List<Object> original = new ArrayList<>();
+
+		FieldConditions(String path) {
+			this.path = path;
+		}
+
+		void add(Object condition) {
+
+			original.add(condition);
+
+			if (isFoldable(condition)) {
+				addDistinct(equals, condition);
+				values.add(condition);
+				return;
+			}
+
+			if (!isFoldableOperators(condition)) {
+				kept.add(condition);
+				return;
+			}
+
+			DBObject operators = (DBObject) condition;
+			for (String operator : operators.keySet()) {
+				Object value = operators.get(operator);
+				switch (operator) {
+					case QueryOperators.GT: addLower(value, false); break;
+					case QueryOperators.GTE: addLower(value, true); break;
+					case QueryOperators.LT: addUpper(value, false); break;
+					case QueryOperators.LTE: addUpper(value, true); break;
+					case QueryOperators.NE: addDistinct(notIns, value); break;
+					case QueryOperators.NIN: for (Object v : (List<?>) value) addDistinct(notIns, v); break;
+					case QueryOperators.IN: ins.add(new ArrayList<>((List<?>) value)); break;
+				}
+				if (value instanceof List) values.addAll((List<?>) value); else values.add(value);
+			}
+		}
+
+		private void addLower(Object value, boolean inclusive) {
+			int c = lower == null ? 1 : BsonComparator.INSTANCE.compare(value, lower);
+			if (c > 0 || c == 0 && !inclusive) {
+				lower = value;
+				lowerInclusive = inclusive;
+			}
+		}
+
+		private void addUpper(Object value, boolean inclusive) {
+			int c = upper == null ? -1 : BsonComparator.INSTANCE.compare(value, upper);
+			if (c < 0 || c == 0 && !inclusive) {
+				upper = value;
+				upperInclusive = inclusive;
+			}
+		}
+
+		/** Adds the resulting conditions (as documents with the path); returns false if they can never match */
+		boolean build(List<DBObject> conditions) {
+
+			if (!isSingleType(values)) {
+				for (Object condition : original) conditions.add(MongoUtil.obj(path, condition));
+				return true;
+			}
+
+			// Contradictions even for arrays: an element is equal to a value that no element can be equal to
+
+			for (Object value : equals) {
+				if (contains(notIns, value)) return false;
+			}
+
+			for (List<Object> in : ins) {
+				in.removeIf(v -> contains(notIns, v));
+				if (in.isEmpty()) return false;
+			}
+
+			if (scalarFields && !foldScalar()) return false;
+
+			// Redundant conditions: the ones met by the value of an equality
+
+			if (!equals.isEmpty()) {
+				Object value = equals.get(0);
+				if (lower != null && isAbove(value, lower, lowerInclusive)) lower = null;
+				if (upper != null && isAbove(upper, value, upperInclusive)) upper = null;
+				ins.removeIf(in -> contains(in, value));
+			}
+
+			BasicDBObject operators = MongoUtil.obj();
+			if (lower != null) operators.append(lowerInclusive ? QueryOperators.GTE : QueryOperators.GT, lower);
+			if (upper != null) operators.append(upperInclusive ? QueryOperators.LTE : QueryOperators.LT, upper);
+			if (!ins.isEmpty()) operators.append(QueryOperators.IN, list(ins.get(0)));
+			if (notIns.size() == 1) operators.append(QueryOperators.NE, notIns.get(0));
+			if (notIns.size() > 1) operators.append(QueryOperators.NIN, list(notIns));
+
+			for (Object value : equals) {
+				conditions.add(MongoUtil.obj(path, value));
+			}
+			if (!operators.isEmpty()) {
+				conditions.add(MongoUtil.obj(path, operators));
+			}
+			for (List<Object> in : ins.subList(Math.min(1, ins.size()), ins.size())) {
+				conditions.add(MongoUtil.obj(path, MongoUtil.obj(QueryOperators.IN, list(in))));
+			}
+			for (Object condition : kept) {
+				conditions.add(MongoUtil.obj(path, condition));
+			}
+			return true;
+		}
+
+		/**
+		 * Combines conditions knowing that the field has a single value:
+		 * equalities and $in must agree and be within the bounds.
+		 * @return false if they can never match
+		 */
+		private boolean foldScalar() {
+
+			if (equals.size() > 1) return false;
+
+			if (lower != null && upper != null) {
+				int c = BsonComparator.INSTANCE.compare(lower, upper);
+				if (c > 0 || c == 0 && !(lowerInclusive && upperInclusive)) return false;
+				if (c == 0 && equals.isEmpty()) equals.add(lower);
+			}
+
+			// Intersect the $in lists and keep the values within the bounds
+			List<Object> in = null;
+			for (List<Object> list : ins) {
+				if (in == null) in = new ArrayList<>(list);
+				else in.removeIf(v -> !contains(list, v));
+			}
+			if (in != null) {
+				in.removeIf(v -> !isWithinBounds(v));
+				if (in.isEmpty()) return false;
+				ins.clear();
+				if (in.size() == 1 && equals.isEmpty()) equals.add(in.get(0)); else ins.add(in);
+			}
+
+			if (!equals.isEmpty()) {
+				Object value = equals.get(0);
+				if (!isWithinBounds(value) || in != null && !contains(in, value)) return false;
+				// The value meets all the rest (it's not in notIns, checked before)
+				lower = upper = null;
+				ins.clear();
+				notIns.clear();
+			} else {
+				notIns.removeIf(v -> !isWithinBounds(v) || !ins.isEmpty() && !contains(ins.get(0), v));
+			}
+
+			return true;
+		}
+
+		private boolean isWithinBounds(Object value) {
+			return (lower == null || isAbove(value, lower, lowerInclusive))
+					&& (upper == null || isAbove(upper, value, upperInclusive));
+		}
+	}
+
+
+	// Values
+
+	/** If a is greater than b (or equal, if inclusive) */
+	private static boolean isAbove(Object a, Object b, boolean inclusive) {
+		int c = BsonComparator.INSTANCE.compare(a, b);
+		return c > 0 || c == 0 && inclusive;
+	}
+
+	/** Values that can be compared to combine conditions (documents, arrays or regexes can't) */
+	private static boolean isFoldable(Object value) {
+		return value instanceof Number || value instanceof String || value instanceof Date
+				|| value instanceof ObjectId || value instanceof Boolean;
+	}
+
+	private static boolean areFoldable(Object values) {
+		return values instanceof List && ((List<?>) values).stream().allMatch(PredicateNormalizer::isFoldable);
+	}
+
+	/** Operator document like {$gt: 1, $lt: 5} with only operators that are combined */
+	private static boolean isFoldableOperators(Object condition) {
+
+		if (!(condition instanceof DBObject) || condition instanceof List) return false;
+
+		DBObject operators = (DBObject) condition;
+		if (operators.keySet().isEmpty()) return false;
+
+		for (String operator : operators.keySet()) {
+			Object value = operators.get(operator);
+			if (!FOLDED_OPERATORS.contains(operator)) return false;
+			boolean isList = operator.equals(QueryOperators.IN) || operator.equals(QueryOperators.NIN);
+			if (isList ? !areFoldable(value) || ((List<?>) value).isEmpty() : !isFoldable(value)) return false;
+		}
+		return true;
+	}
+
+	private static boolean isSingleType(List<Object> values) {
+		for (Object value : values) {
+			if (BsonComparator.typeRank(value) != BsonComparator.typeRank(values.get(0))) return false;
+		}
+		return true;
+	}
+
+	private static boolean contains(List<Object> values, Object value) {
+		for (Object v : values) {
+			if (BsonComparator.typeRank(v) == BsonComparator.typeRank(value)
+					&& BsonComparator.INSTANCE.compare(v, value) == 0) return true;
+		}
+		return false;
+	}
+
+	private static void addDistinct(List<Object> values, Object value) {
+		if (!contains(values, value)) values.add(value);
+	}
+
+	private static BasicDBList list(List<Object> values) {
+		BasicDBList list = new BasicDBList();
+		list.addAll(values);
+		return list;
+	}
+
+	private static Set<String> singleton(String value) {
+		return new HashSet<>(Arrays.asList(value));
+	}
+
+	/** Joins the conditions in one document, or with $and if some of them have the same key */
+	private static BasicDBObject and(List<DBObject> conditions) {
+
+		BasicDBObject result = MongoUtil.obj();
+
+		for (DBObject condition : conditions) {
+			for (String key : condition.keySet()) {
+				if (result.containsField(key)) {
+					return MongoUtil.obj(QueryOperators.AND, conditions);
+				}
+				result.append(key, condition.get(key));
+			}
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,153 @@
+package com.fmaylinch.sqlmongo.parser;
+
+import com.fmaylinch.sqlmongo.tokenizer.SpanTokenizer;
+import com.fmaylinch.sqlmongo.tokenizer.Token.Type;
+import com.mongodb.AggregationOptions;
+import com.mongodb.Bytes;
+import com.mongodb.DBCursor;
+import com.mongodb.ReadPreference;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hints given in a comment right after select, e.g.
+ * <code>select /*+ batchSize(5000) maxTime(30s) readPref(secondaryPreferred) noTimeout *&#47; ...</code>
+ *
+ * They apply to the cursors of the query: batchSize(n), maxTime(n) in ms, s, m or h (ms if no unit),
+ * readPref(name) (primary, primaryPreferred, secondary, secondaryPreferred or nearest), noTimeout, snapshot,
+ * and clientSort (see {@link QueryOptions#clientSort}). Aggregations only use batchSize, maxTime and readPref;
+ * distinct commands only use readPref.
+ */
+public class QueryHints {
+
+	public static final String PREFIX = "/*+";
+
+	/** Documents per batch (0 for the server default) */
+	public int batchSize;
+	/** Time the server can spend in the query before failing (0 for no limit) */
+	public long maxTimeMillis;
+	/** Null to use the one of the connection */
+	public ReadPreference readPreference;
+	/** The server doesn't close the cursor when it's idle */
+	public boolean noTimeout;
+	/** The cursor doesn't return a document twice if it's moved while reading */
+	public boolean snapshot;
+	/** The query is sorted in the client (as if {@link QueryOptions#clientSort} was always) */
+	public boolean clientSort;
+
+	/** Parses a hint comment, including its markers */
+	public static QueryHints parse(String comment) {
+
+		SpanTokenizer tokenizer = new SpanTokenizer(comment.substring(PREFIX.length(), comment.length() - 2));
+		QueryHints hints = new QueryHints();
+
+		while (tokenizer.getType(tokenizer.getNextTokenIndex()) != Type.END) {
+
+			String name = tokenizer.getString(tokenizer.skipNextToken());
+
+			switch (name) {
+				case "batchSize":
+					hints.batchSize = Integer.parseInt(argument(tokenizer, name));
+					break;
+				case "maxTime":
+					hints.maxTimeMillis = parseMillis(argument(tokenizer, name));
+					break;
+				case "readPref":
+					try {
+						hints.readPreference = ReadPreference.valueOf(argument(tokenizer, name));
+					} catch (IllegalArgumentException e) {
+						throw new IllegalArgumentException("Unknown read preference in hint: " + e.getMessage());
+					}
+					break;
+				case "noTimeout":
+					hints.noTimeout = true;
+					break;
+				case "snapshot":
+					hints.snapshot = true;
+					break;
+				case "clientSort":
+					hints.clientSort = true;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown hint `" + name + "` (expected batchSize, maxTime,"
+							+ " readPref, noTimeout, snapshot or clientSort)");
+			}
+		}
+
+		return hints;
+	}
+
+	/** Text between the parentheses after a hint name */
+	private static String argument(SpanTokenizer tokenizer, String name) {
+
+		if (!tokenizer.isToken(tokenizer.skipNextToken(), Type.SYMBOL, "(")) {
+			throw new IllegalArgumentException("Expected ( after hint `" + name + "`");
+		}
+
+		StringBuilder argument = new StringBuilder();
+		int token;
+		while (!tokenizer.isToken(token = tokenizer.skipNextToken(), Type.SYMBOL, ")")) {
+			if (tokenizer.getType(token) == Type.END) {
+				throw new IllegalArgumentException("Expected ) after the argument of hint `" + name + "`");
+			}
+			argument.append(tokenizer.getString(token));
+		}
+		return argument.toString();
+	}
+
+	/** Parses a time like 500, 500ms, 30s, 5m or 1h (500 is 500ms) */
+	private static long parseMillis(String time) {
+
+		int unitStart = 0;
+		while (unitStart < time.length() && (Character.isDigit(time.charAt(unitStart)) || time.charAt(unitStart) == '.')) {
+			unitStart++;
+		}
+
+		double amount;
+		try {
+			amount = Double.parseDouble(time.substring(0, unitStart));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Expected a time like 500ms, 30s or 5m in maxTime but found " + time);
+		}
+
+		switch (time.substring(unitStart)) {
+			case "":
+			case "ms": return (long) amount;
+			case "s": return (long) (amount * 1000);
+			case "m": return (long) (amount * 60_000);
+			case "h": return (long) (amount * 3_600_000);
+			default: throw new IllegalArgumentException("Unknown unit in maxTime(" + time + ") (expected ms, s, m or h)");
+		}
+	}
+
+	/** The hints given, like they're written in the comment (empty if there are none) */
+	@Override
+	public String toString() {
+
+		StringBuilder sb = new StringBuilder();
+		if (batchSize > 0) sb.append(" batchSize(").append(batchSize).append(')');
+		if (maxTimeMillis > 0) sb.append(" maxTime(").append(maxTimeMillis).append(')');
+		if (readPreference != null) sb.append(" readPref(").append(readPreference.getName()).append(')');
+		if (noTimeout) sb.append(" noTimeout");
+		if (snapshot) sb.append(" snapshot");
+		if (clientSort) sb.append(" clientSort");
+		return sb.toString().trim();
+	}
+
+	/** Applies the hints to a find cursor */
+	public void apply(DBCursor cursor) {
+
+		if (batchSize > 0) cursor.batchSize(batchSize);
+		if (maxTimeMillis > 0) cursor.maxTime(maxTimeMillis, TimeUnit.MILLISECONDS);
+		if (readPreference != null) cursor.setReadPreference(readPreference);
+		if (noTimeout) cursor.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+		if (snapshot) cursor.snapshot();
+	}
+
+	/** Applies the hints that aggregations support (batch size and max time) */
+	public void apply(AggregationOptions.Builder options) {
+
+		if (batchSize > 0) options.batchSize(batchSize);
+		if (maxTimeMillis > 0) options.maxTime(maxTimeMillis, TimeUnit.MILLISECONDS);
+	}
+}
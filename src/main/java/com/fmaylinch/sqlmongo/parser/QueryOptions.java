@@ -0,0 +1,64 @@
+package com.fmaylinch.sqlmongo.parser;
+
+import com.fmaylinch.sqlmongo.cache.ResultCache;
+import com.fmaylinch.sqlmongo.schema.SchemaCatalog;
+
+/**
+ * Options of how {@link SqlParser} runs queries (usually the same for all queries of a run).
+ */
+public class QueryOptions {
+
+	/**
+	 * Find cursors return documents that keep the raw BSON and decode each field when it's read,
+	 * so only the printed fields are decoded (nested paths skip the subdocuments not in the path).
+	 */
+	public boolean lazyDecoding = false;
+
+	/** Find queries whose fields are all in an index are hinted to use it (see {@link IndexPlanner}) */
+	public boolean autoIndexHint = true;
+
+	/**
+	 * Fields hold single values (not arrays), so conditions like a = 1 and a = 2 can never match
+	 * and the query isn't sent (see {@link PredicateNormalizer}).
+	 */
+	public boolean scalarFields = false;
+
+	/**
+	 * Queries with limit get the token of the next page (see {@link SqlParser.ParseResult#nextPageToken()}),
+	 * which needs to look for a unique index on the sort fields.
+	 */
+	public boolean pageTokens = false;
+
+	/** Joins are done in the client even if both collections are in the same database (see {@link SqlParser.Join}) */
+	public boolean clientJoin = false;
+
+	/** Documents of the collection in from that are joined at a time in client joins */
+	public int joinBatchSize = 1000;
+
+	public enum ClientSort {
+		/** Sorts in the client only if the server fails because the sort exceeds its memory limit */
+		AUTO,
+		/** Always sorts find queries in the client */
+		ALWAYS,
+		/** Always sorts in the server */
+		NEVER
+	}
+
+	/** When find queries with order by are sorted in the client (see {@link com.fmaylinch.sqlmongo.sort.ExternalSorter}) */
+	public ClientSort clientSort = ClientSort.AUTO;
+
+	/** Documents sorted in memory at a time when sorting in the client; bigger results are merged from temporary files */
+	public int sortRunSize = 100000;
+
+	/** Directory for the temporary files of client sorts (null or empty for the default temporary directory) */
+	public String sortTempDir = null;
+
+	/**
+	 * If not null, select * (without join) selects the columns of the schema of the collection in this catalog,
+	 * so it can be printed horizontally or as CSV like a select of those fields.
+	 */
+	public SchemaCatalog schemaCatalog = null;
+
+	/** If not null, results are taken from this cache when possible, and stored in it otherwise */
+	public ResultCache resultCache = null;
+}
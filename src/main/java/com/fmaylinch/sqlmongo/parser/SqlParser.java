@@ -1,19 +1,36 @@
 package com.fmaylinch.sqlmongo.parser;
 
-import com.fmaylinch.sqlmongo.tokenizer.Token;
+import com.fmaylinch.sqlmongo.cache.CountCache;
+import com.fmaylinch.sqlmongo.cache.ResultCache;
+import com.fmaylinch.sqlmongo.join.HashJoinCursor;
+import com.fmaylinch.sqlmongo.metrics.QueryMetrics;
+import com.fmaylinch.sqlmongo.schema.Schema;
+import com.fmaylinch.sqlmongo.sort.ExternalSorter;
+import com.fmaylinch.sqlmongo.sort.SortFallbackCursor;
+import com.fmaylinch.sqlmongo.tokenizer.SpanTokenizer;
 import com.fmaylinch.sqlmongo.tokenizer.Token.Type;
-import com.fmaylinch.sqlmongo.tokenizer.Tokenizer;
+import com.fmaylinch.sqlmongo.util.BsonComparator;
 import com.fmaylinch.sqlmongo.util.Fun;
+import com.fmaylinch.sqlmongo.util.ListCursor;
 import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.MongoException;
 import com.mongodb.QueryOperators;
+import com.mongodb.ReadPreference;
 import org.bson.types.ObjectId;
 
+import java.nio.file.Paths;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
@@ -21,57 +38,736 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 public class SqlParser {
 
 	private static final String ID = "_id";
+	private static final String GROUP_ID_PREFIX = ID + ".";
 
-	private static List<SimpleDateFormat> dateFormats =
-			Arrays.asList(new SimpleDateFormat("yyyy-MM-dd"), new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+	private static final SpanTokenizer.Words KEYWORDS = SpanTokenizer.Words.of(
+			"select", "from", "where", "as", "and", "limit", "order", "by", "asc", "desc", "group", "having", "distinct",
+			"explain", "offset", "or", "in", "not", "between", "like", "join", "left", "inner", "on");
+
+	/** SimpleDateFormat is not thread-safe (parsers may run concurrently), so one is created per date */
+	private static List<String> datePatterns = Arrays.asList("yyyy-MM-dd", "yyyy-MM-dd HH:mm:ss");
 
 	private final String querySql;
 	private final DB db;
 
+	private QueryOptions options = new QueryOptions();
+
 	/** Tokenizer used to parse the SQL query */
-	private Tokenizer tokenizer;
+	private SpanTokenizer tokenizer;
 
 	private ParseResult parseResult;
 
+	/** Group by paths to the name of the field where each one is in the group result (e.g. _id.g0) */
+	private Map<String, String> groupKeys;
+	/** Accumulators for $group (e.g. a0: {$sum: 1}) */
+	private BasicDBObject groupAccumulators;
+	/** Aliases, aggregates and group keys to the field where they are in the group result */
+	private Map<String, String> groupReferences;
+	/** Aliases of the selected fields that are aggregates (e.g. count(*) or total in sum(price) as total) */
+	private Set<String> selectedAggregates;
+	/** Path of a single field select distinct (its values are returned in _id) */
+	private String distinctPath;
+	/** Seek by sort key for find queries whose order by ends with a unique key (null otherwise) */
+	private KeysetPagination paging;
+	/** Set when an index hinted by {@link IndexPlanner} didn't exist, so the query is run again without hint */
+	private boolean autoIndexHintFailed;
+	/** Alias of the collection in from, when there's a join (paths starting with it are relative to its documents) */
+	private String drivingAlias;
+	/** Alias of the joined collection (null if there's no join), which is the field where joined documents are */
+	private String joinAlias;
+
 
 	public SqlParser(String querySql, DB db) {
 		this.querySql = querySql.trim();
 		this.db = db;
 	}
 
+	public void setOptions(QueryOptions options) {
+		this.options = options;
+	}
+
 	/**
-	 * Parses the SQL query
+	 * Parses the SQL query and runs it (see {@link ParseResult#cursor})
 	 */
 	public ParseResult parse() {
+		parseQuery();
+		run();
+		return parseResult;
+	}
+
+	/**
+	 * Parses the SQL query without running it, so {@link ParseResult#cursor} is null until {@link #run()}
+	 */
+	public ParseResult parseQuery() {
+
+		long start = System.nanoTime();
 
 		parseResult = new ParseResult();
+		groupKeys = new LinkedHashMap<>();
+		groupAccumulators = MongoUtil.obj();
+		groupReferences = new HashMap<>();
+		selectedAggregates = new HashSet<>();
+
+		tokenizer = new SpanTokenizer(querySql);
+		tokenizer.setKeywords(KEYWORDS);
+		// `!` is combined so `!=` is one symbol
+		tokenizer.setSingleSymbols("()[]{}:.,;");
+		tokenizer.setCombinedSymbols("+-*/%=<>&|!");
+
+		parseResult.explain = isNextTokenSkipIt(Type.KEYWORD, "explain");
 
-		tokenizer = new Tokenizer(querySql);
-		tokenizer.setKeywords(new HashSet<>(Arrays.asList(
-				"select", "from", "where", "as", "and", "limit", "order", "by", "asc", "desc")));
+		scanJoinAliases();
 
-		final BasicDBObject select = parseSelect();
+		parseResult.projection = parseSelect();
 
-		final DBCollection collection = parseFrom();
+		parseResult.collection = parseFrom();
 
-		final BasicDBObject query = parseWhere();
+		parseResult.query = normalize(parseWhere());
 
-		parseResult.cursor = collection.find(query, select);
+		if (parseResult.join != null) {
+			splitJoinConditions();
+		}
+
+		if (isNextTokenSkipIt(Type.KEYWORD, "group")) {
+			checkAndSkipNextToken(Type.KEYWORD, "by");
+			parseGroupBy();
+		}
+
+		if (parseResult.distinct && parseResult.fields.size() > 1) {
+			groupByDistinctFields();
+		}
+
+		if (isGrouped()) {
+			groupSelectedFields();
+		} else if (parseResult.distinct) {
+			Map.Entry<String, String> field = parseResult.fields.entrySet().iterator().next();
+			distinctPath = field.getValue();
+			field.setValue(ID);
+		}
+
+		if (isNextTokenSkipIt(Type.KEYWORD, "having")) {
+			parseHaving();
+		}
 
 		if (isNextTokenSkipIt(Type.KEYWORD, "order")) {
 			checkAndSkipNextToken(Type.KEYWORD, "by");
 			parseOrders();
 		}
 
-		if (isNextTokenSkipIt(Type.KEYWORD, "limit")) {
-			parseLimit();
+		if (isNextTokenSkipIt(Type.KEYWORD, "limit")) {
+			parseLimit();
+		}
+
+		if (parseResult.fields.isEmpty() && parseResult.join == null && options.schemaCatalog != null) {
+			selectSchemaColumns();
+		}
+
+		if (parseResult.indexName != null && (isCountOnly() || parseResult.distinct || isGrouped() || parseResult.join != null || isSampled())) {
+			throw new IllegalArgumentException("use index is only supported in queries without"
+					+ " group by, distinct, count(*), join or tablesample");
+		}
+
+		if (parseResult.join != null && parseResult.distinct && !isGrouped()) {
+			throw new IllegalArgumentException("select distinct of one field is not supported with join");
+		}
+
+		if (parseResult.distinct && !isGrouped() && parseResult.orders != null) {
+			String alias = parseResult.fields.keySet().iterator().next();
+			for (String path : parseResult.orders.keySet()) {
+				if (!path.equals(distinctPath) && !path.equals(alias) && !path.equals(ID)) {
+					throw new IllegalArgumentException("select distinct of one field can only be ordered by that field");
+				}
+			}
+		}
+
+		if (isSampled() && parseResult.distinct && !isGrouped()) {
+			throw new IllegalArgumentException("select distinct of one field is not supported with tablesample");
+		}
+
+		if (parseResult.pageToken != null && (isCountOnly() || parseResult.distinct || isGrouped() || parseResult.join != null || isSampled())) {
+			throw new IllegalArgumentException("Page tokens are only supported in queries without"
+					+ " group by, distinct, count(*), join or tablesample");
+		}
+
+		parseResult.countOnly = isCountOnly();
+
+		QueryMetrics.INSTANCE.addStage(QueryMetrics.Stage.PARSE, System.nanoTime() - start);
+
+		return parseResult;
+	}
+
+
+	// Execution
+
+	/**
+	 * Runs the query parsed by {@link #parseQuery()} and sets the cursor of the result.
+	 * For explain queries it sets the plan instead, and the cursor is null.
+	 */
+	public Cursor run() {
+
+		preparePaging();
+
+		if (parseResult.explain) {
+			parseResult.plan = explain();
+			return null;
+		}
+
+		long start = System.nanoTime();
+		QueryMetrics.INSTANCE.queryStarted();
+
+		ResultCache cache = isSampled() ? null : options.resultCache; // samples are random
+		String key = null;
+		String fingerprint = null;
+		Cursor cursor = null;
+
+		if (cache != null && !parseResult.alwaysFalse) {
+			key = cacheKey();
+			fingerprint = cache.fingerprint(parseResult.collection);
+			cursor = cache.get(key, fingerprint);
+		}
+
+		if (parseResult.alwaysFalse) {
+			cursor = isCountOnly() ? countResult(0) : new ListCursor(new ArrayList<>()); // nothing to send
+		}
+
+		if (cursor == null) {
+
+			if (isCountOnly()) {
+				cursor = count();
+			} else if (parseResult.distinct && !isGrouped()) {
+				cursor = distinct();
+			} else if (parseResult.join != null && !isLookup()) {
+				cursor = hashJoin();
+			} else {
+				cursor = isGrouped() || parseResult.join != null || isSampled() ? aggregate() : find();
+			}
+
+			if (cache != null) {
+				cursor = cache.record(key, fingerprint, cursor);
+			}
+		}
+
+		if (paging != null) {
+			cursor = parseResult.pageCursor = paging.new PageCursor(cursor);
+		}
+
+		parseResult.cursor = cursor;
+
+		QueryMetrics.INSTANCE.addStage(QueryMetrics.Stage.EXECUTE, System.nanoTime() - start);
+
+		return parseResult.cursor;
+	}
+
+	/**
+	 * Identifies the results of the query in the {@link ResultCache}: the mongo query or pipeline that is run,
+	 * and the hints (e.g. a secondary may give other results). The where conditions are normalized;
+	 * the order of sort fields matters so they're kept as they are.
+	 */
+	private String cacheKey() {
+
+		StringBuilder key = new StringBuilder(ResultCache.collectionKey(parseResult.collection))
+				.append(" hints ").append(parseResult.hints)
+				.append(' ').append(ResultCache.normalize(parseResult.query));
+
+		if (isCountOnly()) {
+			key.append(" count as ").append(groupAccumulators.keySet().iterator().next());
+		} else if (parseResult.distinct && !isGrouped()) {
+			key.append(" distinct ").append(distinctPath).append(" sort ").append(parseResult.orders);
+		} else if (isGrouped() || parseResult.join != null) {
+			List<DBObject> pipeline = buildPipeline();
+			int match = parseResult.query.isEmpty() ? 0 : 1; // the query is already in the key
+			if (parseResult.join != null) key.append(" join ").append(parseResult.join);
+			return key.append(" aggregate ").append(pipeline.subList(match, pipeline.size())).toString();
+		} else {
+			key.append(" find ").append(ResultCache.normalize(parseResult.projection))
+					.append(" sort ").append(parseResult.orders)
+					.append(" hint ").append(parseResult.indexName);
+		}
+
+		return key.append(" limit ").append(parseResult.limit).append(" offset ").append(parseResult.offset)
+				.append(" after ").append(parseResult.pageToken).toString();
+	}
+
+	/**
+	 * Checks if a find query with offset, page token or a requested next page token (see {@link QueryOptions#pageTokens})
+	 * can seek by its sort key (see {@link KeysetPagination}), which needs the indexes of the collection;
+	 * if so, the sort fields are added to the projection so the key of the last row is known.
+	 */
+	private void preparePaging() {
+
+		paging = null;
+
+		if (isCountOnly() || parseResult.distinct || isGrouped() || parseResult.join != null || isSampled()) return;
+
+		boolean pageTokenRequested = options.pageTokens && parseResult.limit > 0;
+		if (parseResult.offset == 0 && parseResult.pageToken == null && !pageTokenRequested) return;
+
+		paging = KeysetPagination.forOrders(parseResult.collection, parseResult.orders);
+
+		if (paging == null) {
+			if (parseResult.pageToken != null) {
+				throw new IllegalArgumentException("Page tokens need an order by ending with _id or a field with a unique index");
+			}
+			return;
+		}
+
+		BasicDBObject projection = parseResult.projection;
+		if (projection.isEmpty()) return; // all fields
+
+		for (String field : paging.getFields()) {
+			if (!projection.containsField(field) || Integer.valueOf(0).equals(projection.get(field))) {
+				projection.removeField(field);
+				if (!field.equals(ID)) projection.append(field, 1); // _id is included unless excluded
+			}
+		}
+	}
+
+	/** Runs a count command (without query it's answered from the collection metadata) */
+	private Cursor count() {
+
+		DBCollection collection = parseResult.collection;
+
+		long count;
+
+		if (parseResult.hints.maxTimeMillis > 0) { // only a cursor passes the max time to the count command
+			DBCursor cursor = collection.find(parseResult.query);
+			parseResult.hints.apply(cursor);
+			count = cursor.count();
+		} else {
+			count = parseResult.query.isEmpty()
+					? collection.getCount(readPreference())
+					: collection.getCount(parseResult.query, null, readPreference());
+		}
+
+		return countResult(count);
+	}
+
+	/** The row with the count; limit and offset apply to this row, like in the grouped pipeline */
+	private Cursor countResult(long count) {
+		if (parseResult.offset > 0) return new ListCursor(new ArrayList<>());
+		String name = groupAccumulators.keySet().iterator().next();
+		return new ListCursor(Arrays.asList(MongoUtil.obj(name, count)));
+	}
+
+	/** Runs a distinct command; each value is returned in the _id of a document */
+	private Cursor distinct() {
+
+		List<?> values = parseResult.collection.distinct(distinctPath, parseResult.query, readPreference());
+
+		if (parseResult.orders != null) {
+			int direction = (Integer) parseResult.orders.values().iterator().next();
+			values.sort((a, b) -> direction * BsonComparator.INSTANCE.compare(a, b));
+		}
+
+		values = values.subList(Math.min(parseResult.offset, values.size()), values.size());
+
+		if (parseResult.limit > 0 && values.size() > parseResult.limit) {
+			values = values.subList(0, parseResult.limit);
+		}
+
+		return new ListCursor(Fun.map(values, v -> MongoUtil.obj(ID, v)));
+	}
+
+	/** Gets the plan of the query from the server (count and distinct commands can't be explained) */
+	private DBObject explain() {
+
+		if (parseResult.alwaysFalse || isCountOnly() || parseResult.distinct && !isGrouped()) {
+			return null;
+		}
+
+		if (parseResult.join != null && !isLookup()) {
+			return drivingCursor().explain(); // the foreign collection is queried by batches
+		}
+
+		if (isGrouped() || parseResult.join != null || isSampled()) {
+			parseResult.pipeline = buildPipeline();
+			return parseResult.collection.explainAggregate(parseResult.pipeline, aggregationOptions());
+		}
+
+		parseResult.clientSort = isClientSortForced();
+
+		return findCursor(seekQuery()).explain();
+	}
+
+	/**
+	 * Runs the query sorted by the server, or by the client if clientSort is always or the server can't sort it
+	 * in memory (see {@link QueryOptions#clientSort}).
+	 */
+	private Cursor find() {
+
+		parseResult.clientSort = isClientSortForced();
+
+		DBObject query = seekQuery();
+
+		return withHintFallback(sortedFind(query), () -> sortedFind(query));
+	}
+
+	private Cursor sortedFind(DBObject query) {
+
+		DBCursor cursor = findCursor(query);
+
+		if (parseResult.clientSort) {
+			return clientSort(cursor);
+		}
+
+		if (parseResult.orders != null && options.clientSort == QueryOptions.ClientSort.AUTO) {
+			return new SortFallbackCursor(cursor, () -> {
+				parseResult.clientSort = true;
+				return clientSort(findCursor(query));
+			});
+		}
+
+		return cursor;
+	}
+
+	/** If the query has order by and clientSort is always or hinted */
+	private boolean isClientSortForced() {
+		return parseResult.orders != null
+				&& (options.clientSort == QueryOptions.ClientSort.ALWAYS || parseResult.hints.clientSort);
+	}
+
+	/**
+	 * Query with the condition to seek after the page token or the offset if possible (see {@link KeysetPagination}).
+	 * Otherwise the offset is skipped by the cursor; {@link ParseResult#skip} is set to the rows to skip.
+	 */
+	private DBObject seekQuery() {
+
+		DBObject query = parseResult.query;
+		int skip = parseResult.offset;
+
+		if (paging != null && parseResult.pageToken != null) {
+			parseResult.seekCondition = paging.after(KeysetPagination.decodeToken(parseResult.pageToken));
+		} else if (paging != null && skip > 0 && !parseResult.clientSort) {
+			try {
+				List<Object> boundary = findSortKeyAt(skip - 1);
+				if (boundary != null) {
+					parseResult.seekCondition = paging.after(boundary);
+					skip = 0;
+				} // otherwise there are less rows than the offset, so nothing is left to skip through
+			} catch (MongoException e) {
+				if (options.clientSort != QueryOptions.ClientSort.AUTO || !SortFallbackCursor.isSortMemoryError(e)) throw e;
+				System.err.println("Warning: the server can't sort in memory, so results are sorted in the client");
+				parseResult.clientSort = true;
+			}
+		} else if (skip > 0 && !parseResult.clientSort) { // sorted in the client, all documents are read anyway
+			System.err.println("Warning: offset without an order by ending with _id or a unique key is done by skipping"
+					+ " documents, which the server has to walk through");
+		}
+
+		if (parseResult.seekCondition != null) {
+			query = KeysetPagination.and(query, parseResult.seekCondition);
+		}
+
+		parseResult.skip = skip;
+
+		return query;
+	}
+
+	/** Find cursor for the query; if sorted in the client, without sort, skip nor limit but with the sort fields */
+	private DBCursor findCursor(DBObject query) {
+
+		DBObject projection = parseResult.clientSort ? withSortFields(parseResult.projection) : parseResult.projection;
+
+		DBCursor cursor = parseResult.collection.find(query, projection);
+
+		if (options.lazyDecoding) {
+			cursor.setDecoderFactory(LazyDBDecoder.FACTORY);
+		}
+
+		if (!parseResult.clientSort) {
+
+			if (parseResult.orders != null) {
+				cursor.sort(parseResult.orders);
+			}
+
+			if (parseResult.skip > 0) {
+				cursor.skip(parseResult.skip);
+			}
+
+			if (parseResult.limit > 0) {
+				cursor.limit(parseResult.limit);
+			}
+		}
+
+		hintIndex(cursor, query, projection);
+		parseResult.hints.apply(cursor);
+
+		return cursor;
+	}
+
+	/** Projection that also includes the sort fields, so the client can compare documents */
+	private DBObject withSortFields(BasicDBObject projection) {
+
+		if (projection.isEmpty()) return projection; // all fields
+
+		BasicDBObject result = new BasicDBObject(projection);
+		for (String field : parseResult.orders.keySet()) {
+			if (!result.containsField(field) || Integer.valueOf(0).equals(result.get(field))) {
+				result.removeField(field);
+				if (!field.equals(ID)) result.append(field, 1); // _id is included unless excluded
+			}
+		}
+		return result;
+	}
+
+	/** Sorts the documents of the cursor with {@link ExternalSorter}, then skips and limits them */
+	private Cursor clientSort(Cursor cursor) {
+
+		String tempDir = options.sortTempDir;
+		ExternalSorter sorter = new ExternalSorter(parseResult.orders, options.sortRunSize,
+				tempDir == null || tempDir.isEmpty() ? null : Paths.get(tempDir));
+
+		return sorter.sort(cursor, parseResult.skip, parseResult.limit);
+	}
+
+	private void hintIndex(DBCursor cursor, DBObject query, DBObject projection) {
+
+		if (parseResult.indexName != null) {
+			cursor.hint(parseResult.indexName);
+		} else if (options.autoIndexHint && !autoIndexHintFailed) {
+			parseResult.coveringIndex = IndexPlanner.findCoveringIndex(parseResult.collection,
+					query, projection, parseResult.orders);
+			if (parseResult.coveringIndex != null) {
+				cursor.hint(parseResult.coveringIndex);
+			}
+		}
+	}
+
+	/**
+	 * If an index was hinted by {@link IndexPlanner}, the cursor is run again without hint when the index
+	 * doesn't exist anymore (see {@link HintFallbackCursor}); the cached indexes are forgotten then.
+	 */
+	private Cursor withHintFallback(Cursor cursor, Supplier<Cursor> withoutHint) {
+
+		if (parseResult.coveringIndex == null) return cursor;
+
+		return new HintFallbackCursor(cursor, () -> {
+			IndexPlanner.clearCache();
+			autoIndexHintFailed = true;
+			parseResult.coveringIndex = null;
+			return withoutHint.get();
+		});
+	}
+
+	/**
+	 * Sort key of the row at the given position, reading only the sort fields
+	 * (so the server walks index keys without fetching documents if an index covers them).
+	 * Returns null if there are less rows.
+	 */
+	private List<Object> findSortKeyAt(int position) {
+
+		BasicDBObject keys = MongoUtil.obj();
+		for (String field : paging.getFields()) {
+			keys.append(field, 1);
+		}
+		if (!keys.containsField(ID)) keys.append(ID, 0);
+
+		Cursor cursor = withHintFallback(sortKeyCursor(position, keys), () -> sortKeyCursor(position, keys));
+
+		try {
+			return cursor.hasNext() ? paging.sortKey(cursor.next()) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private DBCursor sortKeyCursor(int position, DBObject keys) {
+		DBCursor cursor = parseResult.collection.find(parseResult.query, keys)
+				.sort(parseResult.orders).skip(position).limit(1);
+		hintIndex(cursor, parseResult.query, keys);
+		parseResult.hints.apply(cursor);
+		return cursor;
+	}
+
+	/** Runs a $match, $group, $match (having), $sort, $limit pipeline */
+	private Cursor aggregate() {
+
+		parseResult.pipeline = buildPipeline();
+
+		return parseResult.collection.aggregate(parseResult.pipeline, aggregationOptions(), readPreference());
+	}
+
+	private AggregationOptions aggregationOptions() {
+		AggregationOptions.Builder builder = AggregationOptions.builder()
+				.outputMode(AggregationOptions.OutputMode.CURSOR)
+				.allowDiskUse(true);
+		parseResult.hints.apply(builder);
+		return builder.build();
+	}
+
+	/** The one hinted, or the one of the collection */
+	private ReadPreference readPreference() {
+		ReadPreference hinted = parseResult.hints.readPreference;
+		return hinted != null ? hinted : parseResult.collection.getReadPreference();
+	}
+
+	/**
+	 * Pipeline for grouped queries, joins and samples: $match, then $sample if sampled, then $lookup, $unwind and $match (join conditions) if there's a join;
+	 * $group and $match (having) if grouped; then $sort, $skip, $limit, and $project if not grouped.
+	 */
+	private List<DBObject> buildPipeline() {
+
+		List<DBObject> pipeline = new ArrayList<>();
+
+		if (!parseResult.query.isEmpty()) {
+			pipeline.add(MongoUtil.obj("$match", parseResult.query));
+		}
+
+		if (isSampled()) {
+			pipeline.add(MongoUtil.obj("$sample", MongoUtil.obj("size", sampleSize())));
+		}
+
+		Join join = parseResult.join;
+		if (join != null && isLookup()) {
+			pipeline.add(MongoUtil.obj("$lookup", MongoUtil.obj("from", join.collection.getName())
+					.append("localField", join.localField)
+					.append("foreignField", join.foreignField)
+					.append("as", join.alias)));
+			pipeline.add(MongoUtil.obj("$unwind", MongoUtil.obj("path", "$" + join.alias)
+					.append("preserveNullAndEmptyArrays", join.left)));
+			if (!join.query.isEmpty()) {
+				pipeline.add(MongoUtil.obj("$match", join.query));
+			}
+		}
+
+		if (isGrouped()) {
+
+			BasicDBObject groupId = null;
+			if (!groupKeys.isEmpty()) {
+				groupId = MongoUtil.obj();
+				for (Map.Entry<String, String> key : groupKeys.entrySet()) {
+					groupId.append(key.getValue().substring(GROUP_ID_PREFIX.length()), "$" + key.getKey());
+				}
+			}
+
+			BasicDBObject group = MongoUtil.obj(ID, groupId);
+			for (String name : groupAccumulators.keySet()) {
+				group.append(name, groupAccumulators.get(name));
+			}
+			pipeline.add(MongoUtil.obj("$group", group));
+
+			if (parseResult.having != null) {
+				pipeline.add(MongoUtil.obj("$match", parseResult.having));
+			}
+		}
+
+		if (parseResult.orders != null) {
+			pipeline.add(MongoUtil.obj("$sort", parseResult.orders));
+		}
+
+		if (parseResult.offset > 0) {
+			pipeline.add(MongoUtil.obj("$skip", parseResult.offset));
+		}
+
+		if (parseResult.limit > 0) {
+			pipeline.add(MongoUtil.obj("$limit", parseResult.limit));
+		}
+
+		if (!isGrouped() && !parseResult.projection.isEmpty()) {
+			pipeline.add(MongoUtil.obj("$project", parseResult.projection));
+		}
+
+		return pipeline;
+	}
+
+	/**
+	 * Documents to sample: the rows given, or the percent of the collection count (cached, see {@link CountCache}).
+	 * With a where, $sample takes them from the matching documents.
+	 */
+	private long sampleSize() {
+
+		if (parseResult.sampleRows > 0) return parseResult.sampleRows;
+
+		long count = CountCache.INSTANCE.count(parseResult.collection);
+		return Math.max(1, (long) Math.ceil(count * parseResult.samplePercent / 100));
+	}
+
+	/** Joins with $lookup, unless the joined collection is in another database or a client join is forced */
+	private boolean isLookup() {
+		return parseResult.join.collection.getDB().getName().equals(db.getName()) && !options.clientJoin;
+	}
+
+	/**
+	 * Joins in the client (see {@link HashJoinCursor}): conditions on the joined collection are sent with the
+	 * $in query of each batch, and the order by must be on the collection in from.
+	 */
+	private Cursor hashJoin() {
+
+		Join join = parseResult.join;
+		String prefix = join.alias + ".";
+
+		if (isGrouped()) {
+			throw new IllegalArgumentException("group by is not supported in client joins (with another database or clientJoin)");
+		}
+		if (isSampled()) {
+			throw new IllegalArgumentException("tablesample is not supported in client joins (with another database or clientJoin)");
+		}
+		if (parseResult.orders != null && parseResult.orders.keySet().stream().anyMatch(f -> f.startsWith(prefix))) {
+			throw new IllegalArgumentException("order by fields of the joined collection is not supported in client joins (with another database or clientJoin)");
+		}
+		if (join.left && !join.query.isEmpty()) {
+			throw new IllegalArgumentException("where conditions on the joined collection are not supported in client left joins (with another database or clientJoin)");
+		}
+
+		DBObject foreignQuery = (DBObject) withoutPrefix(join.query, prefix);
+		if (foreignQuery == null) {
+			throw new IllegalArgumentException("where conditions can't mix fields of both collections in client joins (with another database or clientJoin)");
+		}
+
+		HashJoinCursor cursor = new HashJoinCursor(drivingCursor(), join.localField, join.collection,
+				join.foreignField, foreignQuery, join.alias, join.left, options.joinBatchSize);
+		cursor.setSkipAndLimit(parseResult.offset, parseResult.limit);
+		return cursor;
+	}
+
+	/** Cursor over the collection in from, for a client join */
+	private DBCursor drivingCursor() {
+		DBCursor cursor = parseResult.collection.find(parseResult.query);
+		if (parseResult.orders != null) {
+			cursor.sort(parseResult.orders);
+		}
+		parseResult.hints.apply(cursor);
+		return cursor;
+	}
+
+	/** Copy of the query with the prefix removed from the paths, or null if some path doesn't have the prefix */
+	private static Object withoutPrefix(Object query, String prefix) {
+
+		if (query instanceof List) {
+			BasicDBList list = new BasicDBList();
+			for (Object item : (List<?>) query) {
+				Object converted = withoutPrefix(item, prefix);
+				if (converted == null) return null;
+				list.add(converted);
+			}
+			return list;
 		}
 
-		return parseResult;
+		DBObject object = (DBObject) query;
+		BasicDBObject result = MongoUtil.obj();
+
+		for (String key : object.keySet()) {
+			Object value = object.get(key);
+			if (key.startsWith("$")) {
+				if (value instanceof List) {
+					value = withoutPrefix(value, prefix);
+					if (value == null) return null;
+				}
+				result.append(key, value);
+			} else if (key.startsWith(prefix)) {
+				result.append(key.substring(prefix.length()), value);
+			} else {
+				return null;
+			}
+		}
+		return result;
 	}
 
 
@@ -81,16 +777,24 @@ public class SqlParser {
 
 		checkAndSkipNextToken(Type.KEYWORD, "select");
 
+		for (String comment : tokenizer.getCommentsBefore(tokenizer.getNextTokenIndex())) {
+			if (comment.startsWith(QueryHints.PREFIX)) {
+				parseResult.hints = QueryHints.parse(comment);
+			}
+		}
+
 		BasicDBObject select = MongoUtil.obj();
 
 		if (isNextTokenSkipIt(Type.SYMBOL, "*")) return select;
 
+		parseResult.distinct = isNextTokenSkipIt(Type.KEYWORD, "distinct");
+
 		do {
 			parseSelectField(select);
 		} while (isNextTokenSkipIt(Type.SYMBOL, ","));
 
 		// Exclude ID if not selected (mongo includes ID by default)
-		boolean excludeId = parseResult.fields.keySet().stream().noneMatch(f -> f.equals(ID));
+		boolean excludeId = parseResult.fields.values().stream().noneMatch(f -> f.equals(ID));
 		if (excludeId) {
 			select.append(ID, 0);
 		}
@@ -98,35 +802,421 @@ public class SqlParser {
 		return select;
 	}
 
+	/**
+	 * For select *, selects the columns of the schema of the collection (see {@link QueryOptions#schemaCatalog}),
+	 * so the results have fixed columns and the server projects them.
+	 */
+	private void selectSchemaColumns() {
+
+		Schema schema = options.schemaCatalog.get(parseResult.collection);
+		if (schema.columns.isEmpty()) return; // no documents, so it stays as select *
+
+		for (String path : schema.columns.keySet()) {
+			parseResult.fields.put(path, path);
+			parseResult.projection.append(path, 1);
+		}
+		if (!schema.columns.containsKey(ID)) {
+			parseResult.projection.append(ID, 0);
+		}
+
+		parseResult.schema = schema;
+	}
+
 	private DBCollection parseFrom() {
 
 		checkAndSkipNextToken(Type.KEYWORD, "from");
 
-		String table = checkAndSkipNextToken(Type.IDENTIFIER).getString();
+		String table = checkAndSkipNextToken(Type.IDENTIFIER);
 		String alias = table;
 
 		if (isNextTokenSkipIt(Type.KEYWORD, "as")) {
-			alias = checkAndSkipNextToken(Type.IDENTIFIER).getString();
+			alias = checkAndSkipNextToken(Type.IDENTIFIER);
 		}
 
 		parseResult.tables.put(alias, table);
+
+		if (isNextTokenSkipIt(Type.IDENTIFIER, "tablesample")) {
+			parseTableSample();
+		}
+
+		if (isNextTokenSkipIt(Type.IDENTIFIER, "use")) {
+			parseUseIndex();
+		}
+
+		boolean left = isNextTokenSkipIt(Type.KEYWORD, "left");
+		if (left || isNextTokenSkipIt(Type.KEYWORD, "inner") || isNextToken(Type.KEYWORD, "join")) {
+			checkAndSkipNextToken(Type.KEYWORD, "join");
+			parseJoin(left);
+		}
+
 		return db.getCollection(table);
 	}
 
+	/**
+	 * Parses the joined collection (it may be in another database, like otherdb.users) and the condition,
+	 * which must compare a field of each collection, e.g. join users as u on c.userEmail = u._id
+	 */
+	private void parseJoin(boolean left) {
+
+		Join join = new Join();
+		join.left = left;
+
+		String table = checkAndSkipNextToken(Type.IDENTIFIER);
+		String database = null;
+		if (isNextTokenSkipIt(Type.SYMBOL, ".")) {
+			database = table;
+			table = checkAndSkipNextToken(Type.IDENTIFIER);
+		}
+
+		join.alias = isNextTokenSkipIt(Type.KEYWORD, "as") ? checkAndSkipNextToken(Type.IDENTIFIER) : table;
+		join.collection = database == null ? db.getCollection(table) : db.getSisterDB(database).getCollection(table);
+		parseResult.tables.put(join.alias, database == null ? table : database + "." + table);
+
+		checkAndSkipNextToken(Type.KEYWORD, "on");
+		String a = consumeNextPath();
+		checkAndSkipNextToken(Type.SYMBOL, "=");
+		String b = consumeNextPath();
+
+		String prefix = join.alias + ".";
+		if (b.startsWith(prefix) && !a.startsWith(prefix)) {
+			join.localField = a;
+			join.foreignField = b.substring(prefix.length());
+		} else if (a.startsWith(prefix) && !b.startsWith(prefix)) {
+			join.localField = b;
+			join.foreignField = a.substring(prefix.length());
+		} else {
+			throw new IllegalArgumentException("The join condition must compare a field of each collection, like "
+					+ drivingAlias + ".field = " + prefix + "field");
+		}
+
+		parseResult.join = join;
+	}
+
+	/**
+	 * Finds the aliases of the collections before parsing, if there's a join, as the select clause may refer to them:
+	 * paths starting with the alias of the collection in from are relative to its documents
+	 * and paths starting with the alias of the joined collection are relative to the joined documents.
+	 */
+	private void scanJoinAliases() {
+
+		int token = tokenizer.getNextTokenIndex();
+		while (tokenizer.getType(token) != Type.END && !tokenizer.isToken(token, Type.KEYWORD, "from")) {
+			token++;
+		}
+		if (tokenizer.getType(token) == Type.END) return;
+
+		String driving = tokenizer.getString(++token);
+		if (tokenizer.isToken(++token, Type.KEYWORD, "as")) {
+			driving = tokenizer.getString(++token);
+		}
+
+		while (tokenizer.getType(token) != Type.END && !tokenizer.isToken(token, Type.KEYWORD, "join")
+				&& !tokenizer.isToken(token, Type.KEYWORD, "where")) {
+			token++;
+		}
+		if (!tokenizer.isToken(token, Type.KEYWORD, "join")) return;
+
+		String joined = tokenizer.getString(++token);
+		if (tokenizer.isToken(++token, Type.SYMBOL, ".")) { // database.collection
+			joined = tokenizer.getString(++token);
+			token++;
+		}
+		if (tokenizer.isToken(token, Type.KEYWORD, "as")) {
+			joined = tokenizer.getString(++token);
+		}
+
+		drivingAlias = driving;
+		joinAlias = joined;
+	}
+
+	/** Moves the conditions that refer to the joined collection to the join, to be applied after joining */
+	private void splitJoinConditions() {
+
+		BasicDBObject drivingQuery = MongoUtil.obj();
+		BasicDBObject joinQuery = MongoUtil.obj();
+
+		for (String key : parseResult.query.keySet()) {
+			Object value = parseResult.query.get(key);
+			(refersToJoin(key, value) ? joinQuery : drivingQuery).append(key, value);
+		}
+
+		parseResult.query = drivingQuery;
+		parseResult.join.query = joinQuery;
+	}
+
+	private boolean refersToJoin(String key, Object value) {
+
+		if (key.startsWith(joinAlias + ".")) return true;
+
+		if (key.startsWith("$") && value instanceof List) {
+			for (Object item : (List<?>) value) {
+				if (item instanceof DBObject) {
+					DBObject object = (DBObject) item;
+					for (String k : object.keySet()) {
+						if (refersToJoin(k, object.get(k))) return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Parses (n rows) or (p percent), e.g. tablesample (1000 rows) */
+	private void parseTableSample() {
+
+		checkAndSkipNextToken(Type.SYMBOL, "(");
+		String number = checkAndSkipNextToken(Type.NUMBER);
+
+		if (isNextTokenSkipIt(Type.IDENTIFIER, "percent")) {
+			parseResult.samplePercent = Double.parseDouble(number);
+			if (parseResult.samplePercent <= 0 || parseResult.samplePercent > 100) {
+				throw new IllegalArgumentException("tablesample percent must be greater than 0 and at most 100");
+			}
+		} else {
+			checkAndSkipNextToken(Type.IDENTIFIER, "rows");
+			parseResult.sampleRows = Integer.parseInt(number);
+			if (parseResult.sampleRows == 0) {
+				throw new IllegalArgumentException("tablesample rows must be greater than 0");
+			}
+		}
+
+		checkAndSkipNextToken(Type.SYMBOL, ")");
+	}
+
+	/** Index name given like: use index(price_1) or use index('price_1') */
+	private void parseUseIndex() {
+
+		checkAndSkipNextToken(Type.IDENTIFIER, "index");
+		checkAndSkipNextToken(Type.SYMBOL, "(");
+		parseResult.indexName = isNextToken(Type.STRING) ? consumeNextString() : checkAndSkipNextToken(Type.IDENTIFIER);
+		checkAndSkipNextToken(Type.SYMBOL, ")");
+	}
+
 	private BasicDBObject parseWhere()
 	{
-		BasicDBObject query = MongoUtil.obj();
+		if (isNextTokenSkipIt(Type.KEYWORD, "where")) {
+			return parseOr();
+		}
+
+		return MongoUtil.obj();
+	}
 
-		if (isNextTokenSkipIt(Type.KEYWORD, "where"))
-		{
-			do {
-				Condition condition = parseCondition();
-				query.append(condition.path, condition.getMongoValue());
+	/**
+	 * Merges the conditions of each field and folds them (see {@link PredicateNormalizer});
+	 * if they can never match, they're returned as they are and the result is marked as {@link ParseResult#alwaysFalse}.
+	 */
+	private BasicDBObject normalize(BasicDBObject conditions)
+	{
+		BasicDBObject normalized = new PredicateNormalizer(options.scalarFields).normalize(conditions);
 
-			} while (isNextTokenSkipIt(Type.KEYWORD, "and"));
+		if (normalized == null) {
+			parseResult.alwaysFalse = true;
+			return conditions;
 		}
+		return normalized;
+	}
 
-		return query;
+	/** Conditions joined by or (and has precedence) */
+	private BasicDBObject parseOr()
+	{
+		List<BasicDBObject> conditions = new ArrayList<>();
+
+		do {
+			conditions.add(parseAnd());
+		} while (isNextTokenSkipIt(Type.KEYWORD, "or"));
+
+		return conditions.size() == 1 ? conditions.get(0) : MongoUtil.obj(QueryOperators.OR, conditions);
+	}
+
+	/** Conditions joined by and */
+	private BasicDBObject parseAnd()
+	{
+		List<BasicDBObject> conditions = new ArrayList<>();
+
+		do {
+			conditions.add(parsePredicate());
+		} while (isNextTokenSkipIt(Type.KEYWORD, "and"));
+
+		return and(conditions);
+	}
+
+	/** A condition in parentheses, or a comparison, in, between or like over a path */
+	private BasicDBObject parsePredicate()
+	{
+		if (isNextTokenSkipIt(Type.SYMBOL, "(")) {
+			BasicDBObject condition = parseOr();
+			checkAndSkipNextToken(Type.SYMBOL, ")");
+			return condition;
+		}
+
+		String path = consumeNextPath();
+
+		boolean not = isNextTokenSkipIt(Type.KEYWORD, "not");
+
+		if (isNextTokenSkipIt(Type.KEYWORD, "in")) {
+			return MongoUtil.obj(path, MongoUtil.obj(not ? QueryOperators.NIN : QueryOperators.IN, parseValueList()));
+		}
+
+		if (isNextTokenSkipIt(Type.KEYWORD, "like")) {
+			Pattern pattern = likeToRegex(consumeNextString());
+			return MongoUtil.obj(path, not ? MongoUtil.obj(QueryOperators.NOT, pattern) : pattern);
+		}
+
+		if (not) {
+			throw new IllegalArgumentException("Expected `in` or `like` after `not` but found "
+					+ tokenizer.getToken(tokenizer.getNextTokenIndex()));
+		}
+
+		if (isNextTokenSkipIt(Type.KEYWORD, "between")) {
+			Object from = parseValue();
+			checkAndSkipNextToken(Type.KEYWORD, "and");
+			Object to = parseValue();
+			return MongoUtil.obj(path, MongoUtil.obj(QueryOperators.GTE, from).append(QueryOperators.LTE, to));
+		}
+
+		Condition condition = parseCondition(path);
+		return MongoUtil.obj(condition.path, condition.getMongoValue());
+	}
+
+	/** Joins the conditions in one document, or with $and if some of them are on the same field */
+	private static BasicDBObject and(List<BasicDBObject> conditions)
+	{
+		if (conditions.size() == 1) return conditions.get(0);
+
+		BasicDBObject result = MongoUtil.obj();
+
+		for (BasicDBObject condition : conditions) {
+			for (String key : condition.keySet()) {
+				if (result.containsField(key)) {
+					return MongoUtil.obj(QueryOperators.AND, conditions);
+				}
+				result.append(key, condition.get(key));
+			}
+		}
+
+		return result;
+	}
+
+	/** Values in parentheses separated by commas, like (1, 2, 3) */
+	private List<Object> parseValueList()
+	{
+		checkAndSkipNextToken(Type.SYMBOL, "(");
+
+		List<Object> values = new ArrayList<>();
+		do {
+			values.add(parseValue());
+		} while (isNextTokenSkipIt(Type.SYMBOL, ","));
+
+		checkAndSkipNextToken(Type.SYMBOL, ")");
+
+		return values;
+	}
+
+	/**
+	 * Translates a like pattern (% is any text, _ is any char, \ escapes them) to a regex anchored
+	 * where the pattern doesn't start or end with %. So 'abc%' is ^abc, which can use an index,
+	 * while '%abc%' is just abc.
+	 */
+	static Pattern likeToRegex(String like)
+	{
+		StringBuilder regex = new StringBuilder();
+
+		int start = 0;
+		int end = like.length();
+		while (start < end && like.charAt(start) == '%') start++;
+		while (end > start && like.charAt(end - 1) == '%' && !isEscaped(like, end - 1)) end--;
+
+		if (start == 0) regex.append('^');
+
+		for (int i = start; i < end; i++) {
+			char c = like.charAt(i);
+			if (c == '\\' && i + 1 < end) {
+				appendLiteral(regex, like.charAt(++i));
+			} else if (c == '%') {
+				regex.append(".*");
+			} else if (c == '_') {
+				regex.append('.');
+			} else {
+				appendLiteral(regex, c);
+			}
+		}
+
+		if (end == like.length() && (end > start || start == 0)) regex.append('$');
+
+		return Pattern.compile(regex.toString());
+	}
+
+	private static boolean isEscaped(String str, int index)
+	{
+		int backslashes = 0;
+		for (int i = index - 1; i >= 0 && str.charAt(i) == '\\'; i--) backslashes++;
+		return backslashes % 2 == 1;
+	}
+
+	private static void appendLiteral(StringBuilder regex, char c)
+	{
+		if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) regex.append('\\');
+		regex.append(c);
+	}
+
+	private void parseGroupBy()
+	{
+		do {
+			addGroupKey(consumeNextPath());
+		} while (isNextTokenSkipIt(Type.SYMBOL, ","));
+	}
+
+	private void addGroupKey(String path)
+	{
+		if (!groupKeys.containsKey(path)) {
+			String name = GROUP_ID_PREFIX + "g" + groupKeys.size();
+			groupKeys.put(path, name);
+			groupReferences.put(path, name);
+		}
+	}
+
+	/** Distinct of several fields is done grouping by them */
+	private void groupByDistinctFields()
+	{
+		for (Map.Entry<String, String> field : parseResult.fields.entrySet()) {
+			if (selectedAggregates.contains(field.getKey())) {
+				throw new IllegalArgumentException("Aggregate functions can't be used with distinct");
+			}
+			addGroupKey(field.getValue());
+		}
+	}
+
+	/** Selected fields that are not aggregates must be group keys; they are taken from the group id */
+	private void groupSelectedFields()
+	{
+		for (Map.Entry<String, String> field : parseResult.fields.entrySet()) {
+
+			if (selectedAggregates.contains(field.getKey())) continue;
+
+			String key = groupKeys.get(field.getValue());
+			if (key == null) {
+				throw new IllegalArgumentException("Field `" + field.getValue() + "` must be in group by or inside an aggregate function");
+			}
+			field.setValue(key);
+			groupReferences.put(field.getKey(), key);
+		}
+	}
+
+	private void parseHaving()
+	{
+		if (!isGrouped()) {
+			throw new IllegalArgumentException("Having can only be used with group by or aggregate functions");
+		}
+
+		List<BasicDBObject> conditions = new ArrayList<>();
+
+		do {
+			Condition condition = parseCondition(consumeNextGroupReference());
+			conditions.add(MongoUtil.obj(condition.path, condition.getMongoValue()));
+
+		} while (isNextTokenSkipIt(Type.KEYWORD, "and"));
+
+		parseResult.having = normalize(and(conditions));
 	}
 
 	private void parseOrders()
@@ -135,7 +1225,7 @@ public class SqlParser {
 
 		do {
 
-			String path = consumeNextPath();
+			String path = isGrouped() ? consumeNextGroupReference() : consumeNextPath();
 			int direction = 1; // asc by default
 			if (isNextTokenSkipIt(Type.KEYWORD, "asc")) {
 				direction = 1;
@@ -147,13 +1237,21 @@ public class SqlParser {
 
 		} while (isNextTokenSkipIt(Type.SYMBOL, ","));
 
-		parseResult.cursor.sort(orders);
+		parseResult.orders = orders;
 	}
 
+	/** Limit with optional offset: a number of rows or a page token (see {@link ParseResult#nextPageToken()}) */
 	private void parseLimit()
 	{
-		final Token numberToken = checkAndSkipNextToken(Type.NUMBER);
-		parseResult.cursor.limit(Integer.parseInt(numberToken.getString()));
+		parseResult.limit = Integer.parseInt(checkAndSkipNextToken(Type.NUMBER));
+
+		if (isNextTokenSkipIt(Type.KEYWORD, "offset")) {
+			if (isNextToken(Type.STRING)) {
+				parseResult.pageToken = consumeNextString();
+			} else {
+				parseResult.offset = Integer.parseInt(checkAndSkipNextToken(Type.NUMBER));
+			}
+		}
 	}
 
 
@@ -161,23 +1259,105 @@ public class SqlParser {
 
 	private void parseSelectField(BasicDBObject select) {
 
+		if (isNextAggregate()) {
+			parseSelectAggregate();
+			return;
+		}
+
 		String path = consumeNextPath();
 		String alias = path;
 
 		if (isNextTokenSkipIt(Type.KEYWORD, "as")) {
-			alias = checkAndSkipNextToken(Type.IDENTIFIER).getString();
+			alias = checkAndSkipNextToken(Type.IDENTIFIER);
 		}
 
 		select.append(path, 1);
 		parseResult.fields.put(alias, path);
 	}
 
-	private Condition parseCondition()
+	private void parseSelectAggregate() {
+
+		String expression = consumeNextAggregate();
+		String name = groupReferences.get(expression);
+		String alias = expression;
+
+		if (isNextTokenSkipIt(Type.KEYWORD, "as")) {
+			alias = checkAndSkipNextToken(Type.IDENTIFIER);
+			groupReferences.put(alias, name);
+		}
+
+		parseResult.fields.put(alias, name);
+		selectedAggregates.add(alias);
+	}
+
+	/**
+	 * Parses an aggregate function call like sum(price) and adds it to the group accumulators
+	 * (unless the same one was already added).
+	 * @return the normalized expression, e.g. sum(price), which is also a key of {@link #groupReferences}
+	 */
+	private String consumeNextAggregate() {
+
+		Aggregate aggregate = Aggregate.valueOf(checkAndSkipNextToken(Type.IDENTIFIER).toUpperCase());
+		checkAndSkipNextToken(Type.SYMBOL, "(");
+		String path = isNextTokenSkipIt(Type.SYMBOL, "*") ? null : consumeNextPath();
+		checkAndSkipNextToken(Type.SYMBOL, ")");
+
+		if (path == null && aggregate != Aggregate.COUNT) {
+			throw new IllegalArgumentException("Only count accepts `*` as argument");
+		}
+
+		String expression = aggregate.name().toLowerCase() + "(" + (path == null ? "*" : path) + ")";
+
+		if (!groupReferences.containsKey(expression)) {
+			String name = "a" + groupAccumulators.size();
+			groupAccumulators.append(name, aggregate.accumulator(path));
+			groupReferences.put(expression, name);
+		}
+
+		return expression;
+	}
+
+	/** Next aggregate function, alias or group key, used in having or order by of a grouped query */
+	private String consumeNextGroupReference() {
+
+		if (isNextAggregate()) return groupReferences.get(consumeNextAggregate());
+
+		String path = consumeNextPath();
+		String name = groupReferences.get(path);
+		if (name == null) {
+			throw new IllegalArgumentException("`" + path + "` is not a group by field, an aggregate or an alias of them");
+		}
+		return name;
+	}
+
+	private boolean isNextAggregate() {
+		int token = tokenizer.getNextTokenIndex();
+		return tokenizer.getType(token) == Type.IDENTIFIER
+				&& Aggregate.isAggregate(tokenizer, token)
+				&& tokenizer.isToken(token + 1, Type.SYMBOL, "(");
+	}
+
+	/** If the query is just select count(*) (with optional where and without join or tablesample) */
+	private boolean isCountOnly() {
+		return groupKeys.isEmpty() && parseResult.having == null && parseResult.join == null && !isSampled()
+				&& parseResult.fields.size() == 1 && groupAccumulators.size() == 1
+				&& groupReferences.get("count(*)") != null;
+	}
+
+	private boolean isSampled() {
+		return parseResult.sampleRows > 0 || parseResult.samplePercent > 0;
+	}
+
+	private boolean isGrouped() {
+		return !groupKeys.isEmpty() || !groupAccumulators.isEmpty();
+	}
+
+	private Condition parseCondition(String path)
 	{
 		Condition result = new Condition();
 
-		result.path = consumeNextPath();
-		result.operator = Operator.fromSqlOperator(checkAndSkipNextToken(Type.SYMBOL).getString());
+		result.path = path;
+		result.operator = Operator.fromSqlOperator(checkAndSkipNextToken(Type.SYMBOL));
 		result.value = parseValue();
 
 		return result;
@@ -185,20 +1365,20 @@ public class SqlParser {
 
 	private Object parseValue() {
 
-		Token token = tokenizer.skipNextToken();
+		int token = tokenizer.skipNextToken();
 
-		switch (token.getType()) {
-			case STRING: return token.getString();
-			case NUMBER: return Double.parseDouble(token.getString());
-			case BOOLEAN: return Boolean.parseBoolean(token.getString());
+		switch (tokenizer.getType(token)) {
+			case STRING: return unescape(withoutQuotes(tokenizer.getString(token)));
+			case NUMBER: return Double.parseDouble(tokenizer.getString(token));
+			case BOOLEAN: return Boolean.parseBoolean(tokenizer.getString(token));
 			case IDENTIFIER:
-				switch (token.getString()) {
+				switch (tokenizer.getString(token)) {
 					case "Date": return parseDateArgument();
 					case "Id": return parseIdArgument();
 				}
 		}
 
-		throw new IllegalArgumentException("Unexpected value: " + token);
+		throw new IllegalArgumentException("Unexpected value: " + tokenizer.getToken(token));
 	}
 
 	private Date parseDateArgument() {
@@ -208,9 +1388,9 @@ public class SqlParser {
 		checkAndSkipNextToken(Type.SYMBOL, ")");
 
 		try {
-			for (SimpleDateFormat dateFormat : dateFormats) {
-				if (dateStr.length() == dateFormat.toPattern().length()) {
-					return dateFormat.parse(dateStr);
+			for (String pattern : datePatterns) {
+				if (dateStr.length() == pattern.length()) {
+					return new SimpleDateFormat(pattern).parse(dateStr);
 				}
 			}
 		} catch (ParseException e) {
@@ -218,7 +1398,7 @@ public class SqlParser {
 		}
 
 		throw new IllegalArgumentException("Unsupported date: " + dateStr
-				+ " (available formats: " + Fun.map(dateFormats, f -> f.toPattern()) + ")");
+				+ " (available formats: " + datePatterns + ")");
 	}
 
 	private ObjectId parseIdArgument()
@@ -233,17 +1413,40 @@ public class SqlParser {
 	// Tokenizer helper methods
 
 	private String consumeNextString() {
-		String stringWithQuotes = checkAndSkipNextToken(Type.STRING).getString();
+		return withoutQuotes(checkAndSkipNextToken(Type.STRING));
+	}
+
+	private static String withoutQuotes(String stringWithQuotes) {
 		return stringWithQuotes.substring(1, stringWithQuotes.length()-1);
 	}
 
-	/** Joins next path made of IDENTIFIERs and dots like house.address.number */
+	/** Replaces escaped chars like \' by the char */
+	private static String unescape(String str) {
+
+		if (str.indexOf('\\') < 0) return str;
+
+		StringBuilder result = new StringBuilder(str.length());
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			result.append(c == '\\' && i + 1 < str.length() ? str.charAt(++i) : c);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Joins next path made of IDENTIFIERs and dots like house.address.number.
+	 * If there's a join, the alias of the collection in from is removed (e.g. c.price is price).
+	 */
 	public String consumeNextPath()
 	{
-		String result = checkAndSkipNextToken(Type.IDENTIFIER).getString();
+		String result = checkAndSkipNextToken(Type.IDENTIFIER);
 
 		while (isNextTokenSkipIt(Type.SYMBOL, ".")) {
-			result += "." + checkAndSkipNextToken(Type.IDENTIFIER).getString();
+			result += "." + checkAndSkipNextToken(Type.IDENTIFIER);
+		}
+
+		if (joinAlias != null && result.startsWith(drivingAlias + ".")) {
+			result = result.substring(drivingAlias.length() + 1);
 		}
 
 		return result;
@@ -255,25 +1458,25 @@ public class SqlParser {
 	 */
 	private void checkAndSkipNextToken(Type type, String str)
 	{
-		Token token = tokenizer.skipNextToken();
+		int token = tokenizer.skipNextToken();
 
-		if (token.getType() != type || !token.getString().equals(str)) {
-			throw new IllegalArgumentException("Expected " + type.name().toLowerCase() + " `" + str + "` but found " + token);
+		if (!tokenizer.isToken(token, type, str)) {
+			throw new IllegalArgumentException("Expected " + type.name().toLowerCase() + " `" + str + "` but found " + tokenizer.getToken(token));
 		}
 	}
 
 	/**
-	 * Returns and skips next token if it's the expected type.
+	 * Returns the string of next token and skips it, if it's the expected type.
 	 * @throws IllegalArgumentException if next token is not of the type expected
 	 */
-	private Token checkAndSkipNextToken(Type type)
+	private String checkAndSkipNextToken(Type type)
 	{
-		Token token = tokenizer.skipNextToken();
+		int token = tokenizer.skipNextToken();
 
-		if (token.getType() == type) {
-			return token;
+		if (tokenizer.getType(token) == type) {
+			return tokenizer.getString(token);
 		} else {
-			throw new IllegalArgumentException("Expected a " + type.name().toLowerCase() + " but found " + token);
+			throw new IllegalArgumentException("Expected a " + type.name().toLowerCase() + " but found " + tokenizer.getToken(token));
 		}
 	}
 
@@ -285,8 +1488,11 @@ public class SqlParser {
 	}
 
 	private boolean isNextToken(Type type, String str) {
-		Token token = tokenizer.nextToken();
-		return token.getType() == type && token.getString().equals(str);
+		return tokenizer.isToken(tokenizer.getNextTokenIndex(), type, str);
+	}
+
+	private boolean isNextToken(Type type) {
+		return tokenizer.getType(tokenizer.getNextTokenIndex()) == type;
 	}
 
 
@@ -308,6 +1514,48 @@ public class SqlParser {
 		}
 	}
 
+	enum Aggregate {
+
+		COUNT("$sum"),
+		SUM("$sum"),
+		AVG("$avg"),
+		MIN("$min"),
+		MAX("$max");
+
+		public final String accumulator;
+
+		Aggregate(String accumulator) {
+			this.accumulator = accumulator;
+		}
+
+		/** Accumulator for $group; path is null for count(*) */
+		public DBObject accumulator(String path) {
+
+			if (this == COUNT) {
+				if (path == null) return MongoUtil.obj(accumulator, 1);
+				// count(path) only counts documents where path is not null
+				BasicDBList notNull = new BasicDBList();
+				notNull.add("$" + path);
+				notNull.add(null);
+				BasicDBList cond = new BasicDBList();
+				cond.add(MongoUtil.obj(QueryOperators.GT, notNull));
+				cond.add(1);
+				cond.add(0);
+				return MongoUtil.obj(accumulator, MongoUtil.obj("$cond", cond));
+			}
+
+			return MongoUtil.obj(accumulator, "$" + path);
+		}
+
+		/** If the token is the name of an aggregate function */
+		public static boolean isAggregate(SpanTokenizer tokenizer, int token) {
+			for (Aggregate aggregate : values()) {
+				if (tokenizer.equalsIgnoreCase(token, aggregate.name())) return true;
+			}
+			return false;
+		}
+	}
+
 	enum Operator {
 
 		EQ("=", null),
@@ -326,6 +1574,7 @@ public class SqlParser {
 		}
 
 		public static Operator fromSqlOperator(String sqlOp) {
+			if (sqlOp.equals("<>")) return NE;
 			for (Operator op : values()) {
 				if (op.sqlOperator.equals(sqlOp)) return op;
 			}
@@ -333,13 +1582,95 @@ public class SqlParser {
 		}
 	}
 
+	/** Join with another collection */
+	public static class Join
+	{
+		/** Collection joined (it may be in another database) */
+		public DBCollection collection;
+		/** Alias of the joined collection, which is the field where each joined document is put */
+		public String alias;
+		/** Field of the collection in from that must be equal to the foreign one */
+		public String localField;
+		/** Field of the joined collection */
+		public String foreignField;
+		/** If documents without joined documents are also returned */
+		public boolean left;
+		/** Conditions that refer to the joined documents (applied after joining) */
+		public BasicDBObject query;
+
+		@Override
+		public String toString() {
+			return (left ? "left join " : "join ") + collection.getFullName() + " as " + alias
+					+ " on " + localField + " = " + alias + "." + foreignField
+					+ (query.isEmpty() ? "" : " where " + query);
+		}
+	}
+
 	public static class ParseResult
 	{
 		/** Fields selected (keys are aliases) */
 		public Map<String, String> fields = new LinkedHashMap<>(); // To preserve insertion order
 		/** Tables used (keys are aliases) */
 		public Map<String, String> tables = new HashMap<>();
-		/** Cursor obtained after executing collection.find(query, fields) */
-		public DBCursor cursor;
+		/** Collection queried */
+		public DBCollection collection;
+		/** Query built from the where clause */
+		public BasicDBObject query;
+		/** Fields requested to mongo (built from the select clause) */
+		public BasicDBObject projection;
+		/** Sort built from the order by clause (null if there's no order by) */
+		public BasicDBObject orders;
+		/** Limit of results (0 if there's no limit) */
+		public int limit;
+		/** If select distinct was used */
+		public boolean distinct;
+		/** If the query is just select count(*), run as a count command */
+		public boolean countOnly;
+		/** Having conditions over the grouped values (null if there's no having) */
+		public BasicDBObject having;
+		/** Aggregation pipeline run for grouped queries (null for plain find queries) */
+		public List<DBObject> pipeline;
+		/** Cursor obtained after executing collection.find(query, fields) or the aggregation pipeline */
+		public Cursor cursor;
+		/** Index forced with use index(name) (null if not used) */
+		public String indexName;
+		/** Index hinted because it covers the query (see {@link IndexPlanner}), when no index is forced */
+		public DBObject coveringIndex;
+		/** If the query starts with explain: then it's not run and the plan is obtained instead */
+		public boolean explain;
+		/** Plan returned by the server for explain queries (null for count and distinct) */
+		public DBObject plan;
+		/** Rows to skip given with limit n offset m (0 if there's no offset) */
+		public int offset;
+		/** Page token given with limit n offset 'token' (null if not used) */
+		public String pageToken;
+		/** Condition added to the filter to seek after a sort key, instead of skipping (null if not used) */
+		public DBObject seekCondition;
+		/** Rows skipped by the find cursor, when the offset can't be done by seeking */
+		public int skip;
+		/** If the find query is sorted in the client (see {@link QueryOptions#clientSort}) */
+		public boolean clientSort;
+		/** Join with another collection (null if there's no join) */
+		public Join join;
+		/** Schema whose columns were selected for select * (null if not used) */
+		public Schema schema;
+		/** Hints given in a comment after select, like select /*+ batchSize(1000) *&#47; (see {@link QueryHints}) */
+		public QueryHints hints = new QueryHints();
+		/** Documents sampled with tablesample (n rows), run as a $sample stage (0 if not used) */
+		public int sampleRows;
+		/** Percent of the collection sampled with tablesample (p percent) (0 if not used) */
+		public double samplePercent;
+		/** If the where or having conditions can never match, so the query is not sent */
+		public boolean alwaysFalse;
+		/** Cursor that remembers the last row read, when the query can be paged by sort key */
+		public KeysetPagination.PageCursor pageCursor;
+
+		/**
+		 * Token to use in limit n offset 'token' to get the rows after the last one read,
+		 * or null if the query can't be paged by sort key (or no row was read).
+		 */
+		public String nextPageToken() {
+			return pageCursor == null ? null : pageCursor.nextPageToken();
+		}
 	}
 }
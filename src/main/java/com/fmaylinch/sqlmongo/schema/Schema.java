@@ -0,0 +1,29 @@
+package com.fmaylinch.sqlmongo.schema;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Columns of a collection inferred from a sample of documents (see {@link SchemaInference}):
+ * flattened paths (like address.city) in order of appearance, with the types found in each one.
+ */
+public class Schema {
+
+	/** Types (like string, int or null) by path; arrays and objects with mixed types are one column */
+	public final Map<String, Set<String>> columns = new LinkedHashMap<>();
+	/** Documents sampled */
+	public int sampled;
+	/** When it was inferred (epoch millis) */
+	public long createdAt;
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Set<String>> column : columns.entrySet()) {
+			if (sb.length() > 0) sb.append(", ");
+			sb.append(column.getKey()).append(' ').append(String.join("|", column.getValue()));
+		}
+		return sb.toString();
+	}
+}
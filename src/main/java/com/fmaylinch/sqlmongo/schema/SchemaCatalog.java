@@ -0,0 +1,100 @@
+package com.fmaylinch.sqlmongo.schema;
+
+import com.fmaylinch.sqlmongo.cache.ResultCache;
+import com.mongodb.DBCollection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+/**
+ * Schemas of collections kept in a directory, one file per collection, so they're inferred
+ * (see {@link SchemaInference}) only when there's none or it's older than the TTL.
+ *
+ * Files are text: a header line, the collection key, created at and documents sampled,
+ * and then a line per column with the path and its types separated by a tab.
+ */
+public class SchemaCatalog {
+
+	private static final String HEADER = "sqlmongo-schema 1";
+
+	private final Path directory;
+	private final long ttlMillis;
+	private final int sampleSize;
+
+	public SchemaCatalog(Path directory, long ttlMillis, int sampleSize) {
+		this.directory = directory;
+		this.ttlMillis = ttlMillis;
+		this.sampleSize = sampleSize;
+	}
+
+	/** Schema of the collection from its file, or inferred (and saved) if there's none or it expired */
+	public Schema get(DBCollection collection) {
+
+		String key = ResultCache.collectionKey(collection);
+		Path file = directory.resolve(ResultCache.hash(key) + ".schema");
+
+		Schema schema = read(file, key);
+
+		if (schema == null) {
+			schema = SchemaInference.infer(collection, sampleSize);
+			if (schema.sampled == 0) return schema; // empty (or missing) collection, so it's not kept
+			try {
+				write(file, key, schema);
+			} catch (IOException e) {
+				System.err.println("Could not save schema to catalog: " + e.getMessage());
+			}
+		}
+
+		return schema;
+	}
+
+	private Schema read(Path file, String key) {
+
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+
+			if (!HEADER.equals(reader.readLine()) || !key.equals(reader.readLine())) return null;
+
+			Schema schema = new Schema();
+			schema.createdAt = Long.parseLong(reader.readLine());
+			schema.sampled = Integer.parseInt(reader.readLine());
+
+			if (System.currentTimeMillis() - schema.createdAt > ttlMillis) return null;
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t");
+				schema.columns.put(parts[0], new LinkedHashSet<>(Arrays.asList(parts[1].split(","))));
+			}
+			return schema;
+
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Could not read schema from catalog: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void write(Path file, String key, Schema schema) throws IOException {
+
+		Files.createDirectories(directory);
+		Path temp = Files.createTempFile(directory, "schema", ".tmp");
+
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			writer.write(HEADER + "\n" + key + "\n" + schema.createdAt + "\n" + schema.sampled + "\n");
+			for (String path : schema.columns.keySet()) {
+				writer.write(path + "\t" + String.join(",", schema.columns.get(path)) + "\n");
+			}
+		}
+
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,119 @@
+package com.fmaylinch.sqlmongo.schema;
+
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.AggregationOptions;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Infers the {@link Schema} of a collection from random documents ($sample, or the first ones if the server
+ * doesn't support it). Subdocuments are flattened into paths, unless some document has a value that's not
+ * a subdocument in the same path; then the path is one column.
+ */
+public class SchemaInference {
+
+	private static final String OBJECT = "object";
+
+	public static Schema infer(DBCollection collection, int sampleSize) {
+
+		Map<String, Set<String>> types = new LinkedHashMap<>();
+		int sampled = 0;
+
+		try (Cursor cursor = sample(collection, sampleSize)) {
+			while (cursor.hasNext()) {
+				addPaths(cursor.next(), "", types);
+				sampled++;
+			}
+		}
+
+		Schema schema = new Schema();
+		schema.sampled = sampled;
+		schema.createdAt = System.currentTimeMillis();
+
+		for (Map.Entry<String, Set<String>> path : types.entrySet()) {
+			String name = path.getKey();
+			if (hasColumnAncestor(schema, name)) continue;
+			if (path.getValue().equals(Collections.singleton(OBJECT)) && hasChildren(types, name)) continue; // flattened
+			schema.columns.put(name, path.getValue());
+		}
+
+		return schema;
+	}
+
+	private static Cursor sample(DBCollection collection, int sampleSize) {
+
+		List<DBObject> pipeline = Arrays.asList(MongoUtil.obj("$sample", MongoUtil.obj("size", sampleSize)));
+		AggregationOptions options = AggregationOptions.builder()
+				.outputMode(AggregationOptions.OutputMode.CURSOR)
+				.build();
+
+		try {
+			return collection.aggregate(pipeline, options);
+		} catch (MongoException e) {
+			return collection.find().limit(sampleSize); // $sample is not supported before mongo 3.2
+		}
+	}
+
+	/** Records the type of each path of the document (subdocuments are recorded as object and also walked) */
+	private static void addPaths(BSONObject document, String prefix, Map<String, Set<String>> types) {
+
+		for (String key : document.keySet()) {
+
+			String path = prefix + key;
+			Object value = document.get(key);
+
+			types.computeIfAbsent(path, p -> new LinkedHashSet<>()).add(typeName(value));
+
+			if (value instanceof BSONObject && !(value instanceof List)) {
+				addPaths((BSONObject) value, path + ".", types);
+			}
+		}
+	}
+
+	private static boolean hasColumnAncestor(Schema schema, String path) {
+		for (int dot = path.indexOf('.'); dot >= 0; dot = path.indexOf('.', dot + 1)) {
+			if (schema.columns.containsKey(path.substring(0, dot))) return true;
+		}
+		return false;
+	}
+
+	private static boolean hasChildren(Map<String, Set<String>> types, String path) {
+		String prefix = path + ".";
+		return types.keySet().stream().anyMatch(p -> p.startsWith(prefix));
+	}
+
+	/** Name of the type like mongo's $type aliases */
+	public static String typeName(Object value) {
+
+		if (value == null) return "null";
+		if (value instanceof String) return "string";
+		if (value instanceof Integer) return "int";
+		if (value instanceof Long) return "long";
+		if (value instanceof Number) return "double";
+		if (value instanceof Boolean) return "bool";
+		if (value instanceof Date) return "date";
+		if (value instanceof ObjectId) return "objectId";
+		if (value instanceof List) return "array";
+		if (value instanceof BSONObject || value instanceof Map) return OBJECT;
+		if (value instanceof Binary || value instanceof byte[]) return "binData";
+		if (value instanceof Pattern) return "regex";
+		if (value instanceof BSONTimestamp) return "timestamp";
+		return value.getClass().getSimpleName();
+	}
+}
@@ -0,0 +1,181 @@
+package com.fmaylinch.sqlmongo.server;
+
+import com.fmaylinch.sqlmongo.output.ExplainPrinter;
+import com.fmaylinch.sqlmongo.output.ResultPrinter;
+import com.fmaylinch.sqlmongo.parser.QueryOptions;
+import com.fmaylinch.sqlmongo.parser.SqlParser;
+import com.fmaylinch.sqlmongo.util.MongoUtil;
+import com.mongodb.DB;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP server on the loopback interface that runs queries with a pooled client per URI
+ * (see {@link MongoUtil#getPooledDb}), so the JVM and the connections are reused between queries.
+ *
+ * The query is the body of a POST to /query, e.g.
+ * <pre>curl --data-binary "select userEmail from coupons" "localhost:8017/query?output=csv"</pre>
+ * Parameters (optional): uri (the configured one by default) and output (horizontal, vertical or csv).
+ * Results are streamed in the response as they are read from the cursor.
+ */
+public class QueryServer {
+
+	private final ResultPrinter printer;
+	private final String defaultUri;
+	private final int poolSize;
+
+	private QueryOptions options = new QueryOptions();
+
+	private HttpServer server;
+	private ExecutorService workers;
+
+	public QueryServer(ResultPrinter printer, String defaultUri, int poolSize) {
+		this.printer = printer;
+		this.defaultUri = defaultUri;
+		this.poolSize = poolSize;
+	}
+
+	public void setOptions(QueryOptions options) {
+		this.options = options;
+	}
+
+	/** Starts listening on the port, running up to the given number of queries at the same time */
+	public void start(int port, int threads) throws IOException
+	{
+		workers = Executors.newFixedThreadPool(threads);
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/query", this::handle);
+		server.setExecutor(workers);
+		server.start();
+	}
+
+	/** Stops accepting queries and closes the pooled clients */
+	public void stop()
+	{
+		server.stop(0);
+		workers.shutdownNow();
+		MongoUtil.closePooledDbs();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				sendError(exchange, 405, "Send the query with POST");
+				return;
+			}
+
+			Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+			String uri = params.getOrDefault("uri", defaultUri);
+			String output = params.getOrDefault("output", "horizontal");
+			String querySql = readBody(exchange.getRequestBody());
+
+			if (StringUtils.isBlank(querySql)) {
+				sendError(exchange, 400, "Please provide the query in the request body");
+				return;
+			}
+
+			SqlParser.ParseResult result;
+			try {
+				DB db = MongoUtil.getPooledDb(uri, poolSize);
+				SqlParser parser = new SqlParser(querySql, db);
+				parser.setOptions(options);
+				result = parser.parse();
+			} catch (RuntimeException e) {
+				sendError(exchange, 400, String.valueOf(e.getMessage()));
+				return;
+			}
+
+			if (result.explain) {
+				output = "explain";
+			} else if (result.fields.isEmpty()) {
+				output = "vertical"; // all fields can only be printed vertically
+			}
+
+			String contentType = output.equals("csv") ? "text/csv" : "text/plain";
+			exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+			exchange.sendResponseHeaders(200, 0); // chunked, as the size is not known
+
+			OutputStream body = exchange.getResponseBody();
+
+			switch (output) {
+				case "csv":
+					printer.printCsv(result.cursor, result.fields, Channels.newChannel(body));
+					break;
+				case "explain":
+					try (Writer out = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+						out.write(ExplainPrinter.describe(result));
+					}
+					break;
+				case "vertical":
+					try (Writer out = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+						printer.printVertical(result.cursor, result.fields, out);
+					}
+					break;
+				default:
+					try (Writer out = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+						printer.printHorizontal(result.cursor, result.fields, out);
+					}
+					break;
+			}
+
+		} catch (RuntimeException e) {
+			// Headers may have been sent already, so the client only sees a truncated response
+			System.err.println("Error running query: " + e.getMessage());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException
+	{
+		byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	private static String readBody(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, read);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, String> parseParams(String rawQuery) throws IOException
+	{
+		Map<String, String> params = new HashMap<>();
+		if (rawQuery == null) return params;
+
+		for (String pair : rawQuery.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+}
@@ -0,0 +1,331 @@
+package com.fmaylinch.sqlmongo.sort;
+
+import com.fmaylinch.sqlmongo.output.FieldAccessor;
+import com.fmaylinch.sqlmongo.util.BsonComparator;
+import com.fmaylinch.sqlmongo.util.ListCursor;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.ServerAddress;
+import org.bson.BSON;
+import org.bson.LazyBSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts documents in the client, for sorts the server can't do in memory (no index for the sort).
+ *
+ * With a limit, only the first skip + limit documents are kept in a bounded heap, if they fit in a run.
+ * Otherwise documents are sorted in runs of a fixed number of documents; if there's more than one run,
+ * each one is written to a temporary file as BSON documents one after the other,
+ * and the runs are merged reading one document of each at a time.
+ */
+public class ExternalSorter {
+
+	private final Comparator<DBObject> comparator;
+	private final int runSize;
+	private final Path tempDir;
+
+	/**
+	 * @param orders sort like {price: -1, _id: 1}
+	 * @param tempDir directory for the runs (null for the default temporary directory)
+	 */
+	public ExternalSorter(DBObject orders, int runSize, Path tempDir) {
+		this.comparator = comparator(orders);
+		this.runSize = runSize;
+		this.tempDir = tempDir;
+	}
+
+	/** Compares documents by the fields of the sort, like mongo compares values (see {@link BsonComparator}) */
+	public static Comparator<DBObject> comparator(DBObject orders) {
+
+		Comparator<DBObject> result = null;
+
+		for (String field : orders.keySet()) {
+			FieldAccessor accessor = FieldAccessor.compile(field);
+			int direction = ((Number) orders.get(field)).intValue() < 0 ? -1 : 1;
+			Comparator<DBObject> byField = (a, b) -> direction * BsonComparator.INSTANCE.compare(accessor.get(a), accessor.get(b));
+			result = result == null ? byField : result.thenComparing(byField);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a cursor that reads and sorts all documents of the given one when it's first used.
+	 * @param limit 0 for no limit
+	 */
+	public Cursor sort(Cursor cursor, int skip, int limit) {
+		return new SortingCursor(cursor, skip, limit);
+	}
+
+	/** Reads all the documents and returns them sorted */
+	private Cursor sortAll(Cursor cursor, int skip, int limit) throws IOException {
+
+		try {
+			if (limit > 0 && (long) skip + limit <= runSize) {
+				return new ListCursor(skip(topN(cursor, skip + limit), skip));
+			}
+
+			List<Path> runs = new ArrayList<>();
+			try {
+				List<DBObject> run = new ArrayList<>();
+
+				while (cursor.hasNext()) {
+					run.add(cursor.next());
+					if (run.size() == runSize) {
+						runs.add(writeRun(run));
+						run.clear();
+					}
+				}
+
+				run.sort(comparator);
+
+				if (runs.isEmpty()) {
+					return new ListCursor(limit(skip(run, skip), limit)); // all fit in memory
+				}
+
+				if (!run.isEmpty()) {
+					runs.add(writeRun(run));
+				}
+
+				MergeCursor merge = new MergeCursor(runs);
+				for (int i = 0; i < skip && merge.hasNext(); i++) {
+					merge.next();
+				}
+				merge.limit(limit);
+				return merge;
+
+			} catch (IOException | RuntimeException e) {
+				for (Path run : runs) Files.deleteIfExists(run);
+				throw e;
+			}
+
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/** The first n documents, keeping a heap whose top is the greatest of them */
+	private List<DBObject> topN(Cursor cursor, int n) {
+
+		PriorityQueue<DBObject> heap = new PriorityQueue<>(comparator.reversed());
+
+		while (cursor.hasNext()) {
+			DBObject object = cursor.next();
+			if (heap.size() < n) {
+				heap.add(object);
+			} else if (comparator.compare(object, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(object);
+			}
+		}
+
+		List<DBObject> result = new ArrayList<>(heap);
+		result.sort(comparator);
+		return result;
+	}
+
+	private static List<DBObject> skip(List<DBObject> objects, int skip) {
+		return skip == 0 ? objects : objects.subList(Math.min(skip, objects.size()), objects.size());
+	}
+
+	private static List<DBObject> limit(List<DBObject> objects, int limit) {
+		return limit == 0 || objects.size() <= limit ? objects : objects.subList(0, limit);
+	}
+
+	/** Sorts the run and writes it to a temporary file */
+	private Path writeRun(List<DBObject> run) throws IOException {
+
+		run.sort(comparator);
+
+		Path file = tempDir == null ? Files.createTempFile("sqlmongo-sort", ".run")
+				: Files.createTempFile(tempDir, "sqlmongo-sort", ".run");
+
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+			for (DBObject object : run) {
+				if (object instanceof LazyBSONObject) {
+					((LazyBSONObject) object).pipe(out); // already BSON
+				} else {
+					out.write(BSON.encode(object));
+				}
+			}
+		}
+		return file;
+	}
+
+
+	/** Sorts when it's first used, so reading is measured as fetching */
+	private class SortingCursor implements Cursor {
+
+		private final Cursor cursor;
+		private final int skip;
+		private final int limit;
+		private Cursor sorted;
+
+		SortingCursor(Cursor cursor, int skip, int limit) {
+			this.cursor = cursor;
+			this.skip = skip;
+			this.limit = limit;
+		}
+
+		private Cursor sorted() {
+			if (sorted == null) {
+				try {
+					sorted = sortAll(cursor, skip, limit);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return sorted;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return sorted().hasNext();
+		}
+
+		@Override
+		public DBObject next() {
+			return sorted().next();
+		}
+
+		@Override
+		public long getCursorId() {
+			return cursor.getCursorId();
+		}
+
+		@Override
+		public ServerAddress getServerAddress() {
+			return cursor.getServerAddress();
+		}
+
+		@Override
+		public void close() {
+			if (sorted != null) sorted.close(); else cursor.close();
+		}
+	}
+
+	/** Merges sorted runs, taking the least document of the next ones of each run; deletes the runs when closed */
+	private class MergeCursor implements Cursor {
+
+		private final List<Path> files;
+		private final List<RunReader> readers = new ArrayList<>();
+		private final PriorityQueue<RunReader> queue;
+		/** Documents left to return */
+		private long remaining = Long.MAX_VALUE;
+
+		MergeCursor(List<Path> files) throws IOException {
+			this.files = files;
+			this.queue = new PriorityQueue<>(files.size(), (a, b) -> comparator.compare(a.current, b.current));
+			for (Path file : files) {
+				RunReader reader = new RunReader(file);
+				readers.add(reader);
+				if (reader.advance()) queue.add(reader);
+			}
+		}
+
+		/** Returns at most the given documents from now on (0 for no limit) */
+		void limit(int limit) {
+			if (limit > 0) remaining = limit;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0 && !queue.isEmpty();
+		}
+
+		@Override
+		public DBObject next() {
+
+			RunReader reader = remaining > 0 ? queue.poll() : null;
+			if (reader == null) throw new NoSuchElementException();
+			remaining--;
+
+			DBObject result = reader.current;
+			try {
+				if (reader.advance()) queue.add(reader);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return result;
+		}
+
+		@Override
+		public long getCursorId() {
+			return 0;
+		}
+
+		@Override
+		public ServerAddress getServerAddress() {
+			return null;
+		}
+
+		@Override
+		public void close() {
+			queue.clear();
+			for (RunReader reader : readers) {
+				try {
+					reader.in.close();
+				} catch (IOException e) {
+					// Nothing to do
+				}
+			}
+			for (Path file : files) {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException e) {
+					System.err.println("Could not delete " + file + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/** Reads the documents of a run one by one */
+	private static class RunReader {
+
+		final DataInputStream in;
+		final DefaultDBDecoder decoder = new DefaultDBDecoder();
+		DBObject current;
+
+		RunReader(Path file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+		}
+
+		/** Reads next document into current; returns false at the end */
+		boolean advance() throws IOException {
+
+			int size;
+			try {
+				size = Integer.reverseBytes(in.readInt()); // BSON sizes are little endian
+			} catch (EOFException e) {
+				current = null;
+				return false;
+			}
+
+			byte[] bytes = new byte[size];
+			bytes[0] = (byte) size;
+			bytes[1] = (byte) (size >> 8);
+			bytes[2] = (byte) (size >> 16);
+			bytes[3] = (byte) (size >> 24);
+			in.readFully(bytes, 4, size - 4);
+
+			current = decoder.decode(bytes, (DBCollection) null);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.fmaylinch.sqlmongo.sort;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+
+import java.util.function.Supplier;
+
+/**
+ * Cursor of a query sorted by the server that, if the server fails because the sort needs more memory
+ * than it allows, is replaced by the one given by the fallback (e.g. the query sorted in the client by {@link ExternalSorter}).
+ * The server fails before returning the first batch, so it's only checked then.
+ */
+public class SortFallbackCursor implements Cursor {
+
+	private Cursor cursor;
+	private Supplier<Cursor> fallback;
+
+	public SortFallbackCursor(Cursor cursor, Supplier<Cursor> fallback) {
+		this.cursor = cursor;
+		this.fallback = fallback;
+	}
+
+	/** If the error is the one the server gives when a sort without index exceeds its memory limit */
+	public static boolean isSortMemoryError(MongoException e) {
+		String message = String.valueOf(e.getMessage());
+		return e.getCode() == 17144 || e.getCode() == 17406 || e.getCode() == 16819
+				|| message.contains("Sort operation used more than the maximum")
+				|| message.contains("too much data for sort()");
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		if (fallback == null) return cursor.hasNext();
+
+		try {
+			boolean result = cursor.hasNext();
+			fallback = null;
+			return result;
+		} catch (MongoException e) {
+			if (!isSortMemoryError(e)) throw e;
+			cursor.close();
+			System.err.println("Warning: the server can't sort in memory, so results are sorted in the client");
+			cursor = fallback.get();
+			fallback = null;
+			return cursor.hasNext();
+		}
+	}
+
+	@Override
+	public DBObject next() {
+		if (fallback != null) hasNext(); // the first call may fall back
+		return cursor.next();
+	}
+
+	@Override
+	public long getCursorId() {
+		return cursor.getCursorId();
+	}
+
+	@Override
+	public ServerAddress getServerAddress() {
+		return cursor.getServerAddress();
+	}
+
+	@Override
+	public void close() {
+		cursor.close();
+	}
+}
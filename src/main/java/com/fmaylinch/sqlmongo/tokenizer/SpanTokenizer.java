@@ -0,0 +1,456 @@
+package com.fmaylinch.sqlmongo.tokenizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tokenizer that recognizes the same tokens as {@link Tokenizer} but doesn't create objects per token.
+ *
+ * Tokens are identified by their index and stored as spans (type, start, length, line) in primitive arrays
+ * over the input. Keywords and symbols are compared directly against the input, and strings are only
+ * created when {@link #getString(int)} or {@link #getToken(int)} are called.
+ *
+ * Comments are not tokens, but their spans are kept so they can be read with {@link #getCommentsBefore(int)}
+ * (e.g. for hints like <code>select /*+ batchSize(1000) *&#47;</code>).
+ */
+public class SpanTokenizer {
+
+    private static final Token.Type[] TYPES = Token.Type.values();
+
+    // Input and related data
+
+    /** Input parsed */
+    private final CharSequence input;
+
+    /** Index of input (where {@link #readToken()} should look for the next token) */
+    private int index = 0;
+
+    /** Current line in input */
+    private int line = 0;
+
+    /** Number of tokens extracted */
+    private int size = 0;
+
+    /** Token spans: type ordinal, index in input, length and line in input */
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+
+    /** Comment spans: index in input, length, and index of the token that follows */
+    private int commentCount = 0;
+    private int[] commentStarts = new int[2];
+    private int[] commentLengths = new int[2];
+    private int[] commentNextTokens = new int[2];
+
+    /** Index for next token (used by {@link #getNextTokenIndex()}) */
+    private int nextTokenIndex = 0;
+
+
+    // Configurable tokens
+
+    private static final Words BOOLEAN_KEYWORDS = Words.of("true", "false");
+
+    private Words keywords = Words.of();
+    private Words booleanKeywords = BOOLEAN_KEYWORDS;
+    private String singleSymbols = "()[]{}:.,;!";
+    private String combinedSymbols = "+-*/%=<>&|";
+
+    /** Set of words prepared for comparing against the input; create it once and reuse it */
+    public static class Words {
+
+        /** Index i contains the words of length i, to compare only the ones that may match */
+        private final char[][][] byLength;
+
+        private Words(Set<String> words) {
+
+            int maxLength = words.stream().mapToInt(String::length).max().orElse(0);
+
+            byLength = new char[maxLength + 1][][];
+            for (int length = 0; length <= maxLength; length++) {
+                final int wordLength = length;
+                byLength[length] = words.stream().filter(w -> w.length() == wordLength)
+                        .map(String::toCharArray).toArray(char[][]::new);
+            }
+        }
+
+        public static Words of(String... words) {
+            return new Words(new HashSet<>(Arrays.asList(words)));
+        }
+    }
+
+    public void setKeywords(Words keywords) {
+        this.keywords = keywords;
+    }
+
+    public void setBooleanKeywords(Words booleanKeywords) {
+        this.booleanKeywords = booleanKeywords;
+    }
+
+    public void setSingleSymbols(String singleSymbols) {
+        this.singleSymbols = singleSymbols;
+    }
+
+    public void setCombinedSymbols(String combinedSymbols) {
+        this.combinedSymbols = combinedSymbols;
+    }
+
+
+    public SpanTokenizer(CharSequence input) {
+        this.input = input;
+
+        // Rough estimation of tokens, to avoid growing the arrays
+        int capacity = Math.max(8, input.length() / 4);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+    }
+
+
+    // Navigation (same as Tokenizer but with token indexes)
+
+    /** Index of next token, see {@link Tokenizer#getNextTokenIndex()} */
+    public int getNextTokenIndex() {
+        return nextTokenIndex;
+    }
+
+    /** Index of token relative to next one (e.g. 1 is the one after next) */
+    public int getTokenIndexRelative(int relativeIndex) {
+        return nextTokenIndex + relativeIndex;
+    }
+
+    /**
+     * Skips next token, so next token changes.
+     * @return index of skipped token
+     */
+    public int skipNextToken() {
+        int skipped = resolve(nextTokenIndex);
+        nextTokenIndex++;
+        return skipped;
+    }
+
+
+    // Token data
+
+    // The index is resolved before reading the arrays, as resolving may grow (replace) them
+
+    public Token.Type getType(int tokenIndex) {
+        int i = resolve(tokenIndex);
+        return TYPES[types[i]];
+    }
+
+    public int getStart(int tokenIndex) {
+        int i = resolve(tokenIndex);
+        return starts[i];
+    }
+
+    public int getLength(int tokenIndex) {
+        int i = resolve(tokenIndex);
+        return lengths[i];
+    }
+
+    public int getLine(int tokenIndex) {
+        int i = resolve(tokenIndex);
+        return lines[i];
+    }
+
+    /** Creates the string of the token */
+    public String getString(int tokenIndex) {
+        int i = resolve(tokenIndex);
+        return input.subSequence(starts[i], starts[i] + lengths[i]).toString();
+    }
+
+    /** Checks type and string of the token without creating its string */
+    public boolean isToken(int tokenIndex, Token.Type type, String str) {
+        int i = resolve(tokenIndex);
+        return types[i] == type.ordinal() && regionMatches(starts[i], lengths[i], str, false);
+    }
+
+    /** Checks the string of the token ignoring case, without creating its string */
+    public boolean equalsIgnoreCase(int tokenIndex, String str) {
+        int i = resolve(tokenIndex);
+        return regionMatches(starts[i], lengths[i], str, true);
+    }
+
+    /** Creates a {@link Token} object with the data of the token (e.g. for error messages) */
+    public Token getToken(int tokenIndex) {
+        int i = resolve(tokenIndex);
+        Token token = new Token(getString(i), TYPES[types[i]]);
+        token.setStart(starts[i]);
+        token.setLine(lines[i]);
+        return token;
+    }
+
+    /** Comments between the given token and the previous one (including the comment markers) */
+    public List<String> getCommentsBefore(int tokenIndex) {
+
+        int token = resolve(tokenIndex);
+
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < commentCount; i++) {
+            if (commentNextTokens[i] == token) {
+                result.add(input.subSequence(commentStarts[i], commentStarts[i] + commentLengths[i]).toString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads tokens until the given index if necessary.
+     * @return the given index, or the index of the END token if there are less tokens
+     */
+    private int resolve(int tokenIndex) {
+        while (size <= tokenIndex && !isEndReached()) {
+            readToken();
+        }
+        return Math.min(tokenIndex, size - 1);
+    }
+
+    private boolean isEndReached() {
+        return size > 0 && types[size - 1] == Token.Type.END.ordinal();
+    }
+
+
+    // Reading
+
+    /** Adds another token, if there are more tokens available */
+    private void readToken() {
+        Token.Type type;
+        do {
+            skipWhitespace();
+            type = parseToken();
+        } while (type == Token.Type.COMMENT);
+    }
+
+    private void skipWhitespace() {
+        while (index < input.length() && Character.isWhitespace(input.charAt(index))) {
+            if (input.charAt(index) == '\n') {
+                line++;
+            }
+            index++;
+        }
+    }
+
+    /** Parses next token like {@link Tokenizer} does; adds it, or its comment span if it's a comment */
+    private Token.Type parseToken() {
+
+        final int start = index;
+        final int startLine = line;
+
+        int i = index;
+
+        Token.Type type = null;
+        String errorMessage = null;
+
+        if (index >= input.length()) {
+
+            type = Token.Type.END;
+
+        } else if (isValidFirstIdChar(input.charAt(i))) {
+
+            type = Token.Type.IDENTIFIER;
+
+            while (i < input.length() && isValidIdChar(input.charAt(i))) {
+                i++;
+            }
+
+        } else if (input.charAt(i) == '"' || input.charAt(i) == '\'') {
+
+            type = Token.Type.STRING;
+
+            char quoteChar = input.charAt(i);
+
+            i++;
+
+            while (i < input.length() && input.charAt(i) != quoteChar && input.charAt(i) != '\n') {
+                if (input.charAt(i) == '\\') i++;
+                i++;
+            }
+
+            if (i >= input.length() || input.charAt(i) != quoteChar) {
+                errorMessage = "String literal is not terminated with " + quoteChar;
+            } else {
+                i++;
+            }
+
+        } else if (Character.isDigit(input.charAt(i))) {
+
+            type = Token.Type.NUMBER;
+
+            while (i < input.length() && Character.isDigit(input.charAt(i))) {
+                i++;
+            }
+            if (i < input.length() && input.charAt(i) == '.') {
+                i++;
+                while (i < input.length() && Character.isDigit(input.charAt(i))) {
+                    i++;
+                }
+            }
+
+        } else if (input.charAt(i) == '/' && i < input.length()-1 && input.charAt(i+1) == '/') { // Line comment
+
+            type = Token.Type.COMMENT;
+
+            // Skip until the end of line
+            while (i < input.length() && input.charAt(i) != '\n') {
+                i++;
+            }
+
+            if (i < input.length()) { // there's a new line
+                line++;
+                i++;
+            }
+
+        } else if (input.charAt(i) == '/' && i < input.length()-1 && input.charAt(i+1) == '*') { // Block comment
+
+            type = Token.Type.COMMENT;
+
+            while (i < input.length()-1 && (input.charAt(i) != '*' || input.charAt(i+1) != '/')) {
+                if (input.charAt(i) == '\n') {
+                    line++;
+                }
+                i++;
+            }
+
+            if (i >= input.length()-1) {
+                errorMessage = "Block comment is not terminated with '*/'";
+            }
+
+            i += 2;
+
+        } else if (isSymbol(input.charAt(i))) { // Symbol
+
+            type = Token.Type.SYMBOL;
+
+            if (isSingleSymbol(input.charAt(i))) {
+                i++;
+            } else {
+                while (i < input.length() && isCombinedSymbol(input.charAt(i))) {
+                    i++;
+                }
+            }
+
+        } else {
+
+            errorMessage = "Unexpected character `" + input.charAt(i) + "`";
+            i++;
+        }
+
+        final int length = Math.min(i, input.length()) - start;
+
+        if (type == Token.Type.IDENTIFIER) {
+
+            if (isOneOf(keywords, start, length)) {
+                type = Token.Type.KEYWORD;
+            } else if (isOneOf(booleanKeywords, start, length)) {
+                type = Token.Type.BOOLEAN;
+            }
+        }
+
+        if (errorMessage != null) {
+            Token token = new Token(input.subSequence(start, start + length).toString(), type);
+            token.setStart(start);
+            token.setLine(startLine);
+            throw new TokenException(token, errorMessage);
+        }
+
+        index += length;
+
+        if (type != Token.Type.COMMENT) {
+            addToken(type, start, length, startLine);
+        } else {
+            addComment(start, length);
+        }
+
+        return type;
+    }
+
+    private void addToken(Token.Type type, int start, int length, int line) {
+
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+
+    private void addComment(int start, int length) {
+
+        if (commentCount == commentStarts.length) {
+            int capacity = commentCount * 2;
+            commentStarts = Arrays.copyOf(commentStarts, capacity);
+            commentLengths = Arrays.copyOf(commentLengths, capacity);
+            commentNextTokens = Arrays.copyOf(commentNextTokens, capacity);
+        }
+
+        commentStarts[commentCount] = start;
+        commentLengths[commentCount] = length;
+        commentNextTokens[commentCount] = size; // the token that will be added next
+        commentCount++;
+    }
+
+
+    // Char comparison
+
+    private boolean isOneOf(Words words, int start, int length) {
+
+        if (length >= words.byLength.length) return false;
+
+        for (char[] word : words.byLength[length]) {
+            if (regionMatches(start, length, word)) return true;
+        }
+        return false;
+    }
+
+    private boolean regionMatches(int start, int length, char[] word) {
+        for (int i = 0; i < length; i++) {
+            if (input.charAt(start + i) != word[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean regionMatches(int start, int length, String str, boolean ignoreCase) {
+
+        if (length != str.length()) return false;
+
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(start + i);
+            char d = str.charAt(i);
+            if (c != d && (!ignoreCase || Character.toLowerCase(c) != Character.toLowerCase(d))) return false;
+        }
+        return true;
+    }
+
+    private boolean isSymbol(char c) {
+        return isSingleSymbol(c) || isCombinedSymbol(c);
+    }
+
+    private boolean isSingleSymbol(char c) {
+        return singleSymbols.indexOf(c) >= 0;
+    }
+
+    private boolean isCombinedSymbol(char c) {
+        return combinedSymbols.indexOf(c) >= 0;
+    }
+
+    private boolean isValidIdChar(char c) {
+        return isValidFirstIdChar(c) || Character.isDigit(c);
+    }
+
+    private boolean isValidFirstIdChar(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$';
+    }
+}
@@ -0,0 +1,73 @@
+package com.fmaylinch.sqlmongo.util;
+
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compares values like mongo does when sorting: first by type
+ * (null &lt; numbers &lt; strings &lt; objects &lt; arrays &lt; binary &lt; ObjectId &lt; booleans &lt; dates &lt; ...)
+ * and then by value. Objects, arrays and binary data of the same type are considered equal.
+ */
+public class BsonComparator implements Comparator<Object> {
+
+	public static final BsonComparator INSTANCE = new BsonComparator();
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public int compare(Object a, Object b) {
+
+		int rankA = typeRank(a);
+		int rankB = typeRank(b);
+
+		if (rankA != rankB) return Integer.compare(rankA, rankB);
+
+		if (a instanceof Number) return compareNumbers((Number) a, (Number) b);
+		if (a instanceof Boolean || a instanceof String || a instanceof ObjectId || a instanceof Date) {
+			return ((Comparable<Object>) a).compareTo(b);
+		}
+		if (a instanceof BSONTimestamp) return ((BSONTimestamp) a).compareTo((BSONTimestamp) b);
+
+		return 0;
+	}
+
+	private static int compareNumbers(Number a, Number b) {
+
+		if (isIntegral(a) && isIntegral(b)) {
+			return Long.compare(a.longValue(), b.longValue());
+		}
+		return Double.compare(a.doubleValue(), b.doubleValue());
+	}
+
+	private static boolean isIntegral(Number n) {
+		return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+	}
+
+	/** Position of the type of the value in the sort order of types */
+	public static int typeRank(Object value) {
+
+		if (value instanceof MinKey) return 0;
+		if (value == null) return 1;
+		if (value instanceof Number) return 2;
+		if (value instanceof String) return 3;
+		if (value instanceof List) return 5; // before BSONObject as BasicDBList is also one
+		if (value instanceof Map || value instanceof BSONObject) return 4;
+		if (value instanceof Binary || value instanceof byte[]) return 6;
+		if (value instanceof ObjectId) return 7;
+		if (value instanceof Boolean) return 8;
+		if (value instanceof Date) return 9;
+		if (value instanceof BSONTimestamp) return 10;
+		if (value instanceof Pattern) return 11;
+		if (value instanceof MaxKey) return 13;
+		return 12;
+	}
+}
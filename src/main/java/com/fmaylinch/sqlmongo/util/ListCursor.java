@@ -0,0 +1,46 @@
+package com.fmaylinch.sqlmongo.util;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Cursor over results that are already in memory (e.g. the result of a count or distinct command),
+ * so they can be printed like the results of a query.
+ */
+public class ListCursor implements Cursor {
+
+	private final Iterator<DBObject> iterator;
+
+	public ListCursor(List<DBObject> objects) {
+		this.iterator = objects.iterator();
+	}
+
+	@Override
+	public long getCursorId() {
+		return 0;
+	}
+
+	@Override
+	public ServerAddress getServerAddress() {
+		return null;
+	}
+
+	@Override
+	public void close() {
+		// Nothing to close
+	}
+
+	@Override
+	public boolean hasNext() {
+		return iterator.hasNext();
+	}
+
+	@Override
+	public DBObject next() {
+		return iterator.next();
+	}
+}
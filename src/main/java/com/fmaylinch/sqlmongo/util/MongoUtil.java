@@ -1,21 +1,52 @@
 package com.fmaylinch.sqlmongo.util;
 
+import com.fmaylinch.sqlmongo.metrics.QueryMetrics;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
 
 import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 public class MongoUtil {
 
+	/** DBs of the pooled clients, by URI (see {@link #getPooledDb}) */
+	private static final Map<String, DB> pooledDbs = new ConcurrentHashMap<>();
+
 	public static DB connectToDb(String databaseUri)
+	{
+		return connectToDb(new MongoClientURI(databaseUri));
+	}
+
+	/**
+	 * Returns the DB of the URI from a client that is created once per URI and kept open,
+	 * with a pool of up to poolSize connections per host.
+	 */
+	public static DB getPooledDb(String databaseUri, int poolSize)
+	{
+		return pooledDbs.computeIfAbsent(databaseUri, uri -> connectToDb(
+				new MongoClientURI(uri, MongoClientOptions.builder().connectionsPerHost(poolSize))));
+	}
+
+	/** Closes the clients created by {@link #getPooledDb} */
+	public static void closePooledDbs()
+	{
+		for (DB db : pooledDbs.values()) {
+			db.getMongo().close();
+		}
+		pooledDbs.clear();
+	}
+
+	private static DB connectToDb(MongoClientURI mongoURI)
 	{
 		try {
-			MongoClientURI mongoURI = new MongoClientURI(databaseUri);
 			MongoClient client = new MongoClient(mongoURI);
 			DB db = client.getDB(mongoURI.getDatabase());
 
@@ -31,18 +62,73 @@ public class MongoUtil {
 		}
 	}
 
-	public static void process(DBCursor cursor, Consumer<DBObject> consumer)
+	/** Documents processed before they're added to {@link QueryMetrics}, so progress is reported without counting each one */
+	private static final int DOCUMENTS_STEP = 1000;
+
+	/**
+	 * Passes each document to the consumer and closes the cursor; returns the number of documents.
+	 * Documents and batches are recorded in {@link QueryMetrics}, and also the time waiting for the cursor
+	 * and the time in the consumer if timing is on (see {@link QueryMetrics#setTiming}).
+	 */
+	public static long process(Cursor cursor, Consumer<DBObject> consumer)
 	{
+		QueryMetrics metrics = QueryMetrics.INSTANCE;
+		boolean timing = metrics.isTiming();
+
+		long count = 0;
+		long recorded = 0;
+		long processNanos = 0;
+		long start = System.nanoTime();
+
 		try {
-			while (cursor.hasNext()) {
-				consumer.accept(cursor.next());
+			if (!timing) {
+				while (cursor.hasNext()) {
+					consumer.accept(cursor.next());
+					if (++count - recorded == DOCUMENTS_STEP) {
+						metrics.addDocuments(DOCUMENTS_STEP);
+						recorded = count;
+					}
+				}
+				return count;
 			}
+
+			while (true) {
+				long fetchStart = System.nanoTime();
+				if (!cursor.hasNext()) break;
+				DBObject object = cursor.next();
+
+				long processStart = System.nanoTime();
+				if (count == 0) {
+					metrics.addFirstRow(processStart - start);
+				}
+				metrics.addFetch(processStart - fetchStart);
+
+				consumer.accept(object);
+				if (++count - recorded == DOCUMENTS_STEP) {
+					metrics.addDocuments(DOCUMENTS_STEP);
+					recorded = count;
+				}
+				processNanos += System.nanoTime() - processStart;
+			}
+			return count;
 		}
 		finally {
+			metrics.addDocuments(count - recorded);
+			metrics.addStage(QueryMetrics.Stage.PROCESS, processNanos);
+			if (cursor instanceof DBCursor) {
+				metrics.addBatches(batches((DBCursor) cursor));
+			}
 			cursor.close();
 		}
 	}
 
+	/** Batches fetched by the cursor: the first one and the get mores (the driver only counts them in a deprecated method) */
+	@SuppressWarnings("deprecation")
+	private static int batches(DBCursor cursor)
+	{
+		return 1 + cursor.numGetMores();
+	}
+
 	public static BasicDBObject obj(String key, Object value) {
 		return new BasicDBObject(key, value);
 	}